@@ -0,0 +1,123 @@
+package cn.xiaofei.rudp;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 数据包编解码和{@link Util}转换的微基准，每次操作处理一个包。配合-prof gc查看每次操作分配的字节数
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBenchmark {
+    @Param({"1024", "8948"})
+    public int payloadSize;
+
+    private ByteBuffer payload;
+    private ByteBuffer packet; //编码好的数据包，模拟刚收到的缓冲区
+    private RDatagram heapPacket; //已解析的数据包，只读包头
+    private RDatagram directPacket; //同上，直接缓冲区
+    private ByteBuffer scratch; //写包头用，不分配
+    private byte[] bytes;
+    private int seq;
+
+    @Setup
+    public void setup() {
+        payload = ByteBuffer.allocate(payloadSize);
+        packet = new RDatagram(1, 2, 3, RDatagram.TYPE_DATA, new byte[payloadSize]).data;
+        scratch = ByteBuffer.allocate(RDatagram.HEADER_LENGTH + payloadSize);
+        bytes = new byte[RDatagram.HEADER_LENGTH];
+        heapPacket = new RDatagram(1, 2, 3, RDatagram.TYPE_DATA, new byte[payloadSize]);
+        ByteBuffer direct = ByteBuffer.allocateDirect(heapPacket.data.capacity());
+        direct.put(heapPacket.data.duplicate());
+        directPacket = new RDatagram(direct);
+    }
+
+    /**
+     * 生成一个数据包：分配缓冲区，写包头，复制内容
+     */
+    @Benchmark
+    public RDatagram encode() {
+        return new RDatagram(1, 2, seq++, RDatagram.TYPE_DATA, payload.duplicate());
+    }
+
+    /**
+     * 在已有的缓冲区中就地写包头，如ACK、保活包
+     */
+    @Benchmark
+    public ByteBuffer encodeHeaderInPlace() {
+        Header.write(scratch, seq++, RDatagram.HEADER_LENGTH, RDatagram.TYPE_ACK, 1, 2);
+        return scratch;
+    }
+
+    /**
+     * 解析收到的包：读取包头的所有字段和内容视图
+     */
+    @Benchmark
+    public void decode(Blackhole bh) {
+        packet.clear();
+        packet.position(RDatagram.HEADER_LENGTH + payloadSize); //收到的字节数，构造时flip
+        RDatagram rDatagram = new RDatagram(packet);
+        bh.consume(rDatagram.getSeq());
+        bh.consume(rDatagram.getTotalLength());
+        bh.consume(rDatagram.getType());
+        bh.consume(rDatagram.getSendId());
+        bh.consume(rDatagram.getReceiveId());
+        bh.consume(rDatagram.getDataView());
+    }
+
+    /**
+     * 旧的包头解析方式：每个字段用{@link Util#subArray}切出字节数组再转换
+     */
+    @Benchmark
+    public long decodeHeaderLegacy() {
+        byte[] array = heapPacket.data.array();
+        return Util.bytesToInt(Util.subArray(array, 0, 4)) + Util.bytesToShort(Util.subArray(array, 4, 6)) + array[7]
+                + Util.bytesToLong(Util.subArray(array, 8, 16)) + Util.bytesToLong(Util.subArray(array, 16, 24));
+    }
+
+    /**
+     * 用{@link Header}按绝对位置读取包头的所有字段，堆内缓冲区
+     */
+    @Benchmark
+    public long decodeHeaderHeap() {
+        return readHeader(heapPacket);
+    }
+
+    /**
+     * 同上，直接缓冲区
+     */
+    @Benchmark
+    public long decodeHeaderDirect() {
+        return readHeader(directPacket);
+    }
+
+    private static long readHeader(RDatagram rDatagram) {
+        return rDatagram.getSeq() + rDatagram.getTotalLength() + rDatagram.getType() + rDatagram.getSendId() + rDatagram.getReceiveId();
+    }
+
+    /**
+     * 旧的转换方式：每个数字分配一个字节数组
+     */
+    @Benchmark
+    public long utilToBytes() {
+        return Util.bytesToLong(Util.longToBytes(seq++)) + Util.bytesToInt(Util.intToBytes(seq)) + Util.bytesToShort(Util.shortToBytes((short) seq));
+    }
+
+    /**
+     * 按下标就地读写，不分配
+     */
+    @Benchmark
+    public long utilInPlace() {
+        Util.putLong(bytes, 0, seq++);
+        Util.putInt(bytes, 8, seq);
+        Util.putShort(bytes, 12, (short) seq);
+        return Util.getLong(bytes, 0) + Util.getInt(bytes, 8) + Util.getShort(bytes, 12);
+    }
+}
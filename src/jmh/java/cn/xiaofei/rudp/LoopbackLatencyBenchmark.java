@@ -0,0 +1,61 @@
+package cn.xiaofei.rudp;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 本机回环上一个消息从调用send到接收方的监听器拿到整个消息的时间，消息逐个发送。
+ * 1 KB为单包消息（0-RTT），64 KB和16 MB经过会话分段发送
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LoopbackLatencyBenchmark {
+    private static final int SENDER_PORT = 47101;
+    private static final int RECEIVER_PORT = 47102;
+
+    @Param({"1024", "65536", "16777216"})
+    public int size;
+
+    private RDatagramChannel sender;
+    private RDatagramChannel receiver;
+    private InetSocketAddress receiverAddress;
+    private ByteBuffer message;
+    private final SynchronousQueue<RDatagram> received = new SynchronousQueue<>();
+
+    @Setup(Level.Trial)
+    public void setup() {
+        sender = RDatagramChannel.open(SENDER_PORT);
+        receiver = RDatagramChannel.open(RECEIVER_PORT);
+        receiver.setReceiveListener(rDatagram -> {
+            try {
+                received.put(rDatagram);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        receiverAddress = new InetSocketAddress("127.0.0.1", RECEIVER_PORT);
+        message = ByteBuffer.allocate(size);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        sender.close();
+        receiver.close();
+    }
+
+    @Benchmark
+    public RDatagram sendAndReceive() throws InterruptedException {
+        SendTask task = sender.send(message.duplicate(), receiverAddress);
+        RDatagram rDatagram = received.poll(30, TimeUnit.SECONDS);
+        if (task == null || rDatagram == null) throw new IllegalStateException("message lost");
+        return rDatagram;
+    }
+}
@@ -0,0 +1,55 @@
+package cn.xiaofei.rudp;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 本机回环上的持续吞吐：每次调用同时发出concurrency个消息，等全部被接收方收到，结果为每秒的消息数。
+ * 乘以size即字节吞吐
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ThroughputBenchmark {
+    private static final int SENDER_PORT = 47201;
+    private static final int RECEIVER_PORT = 47202;
+    private static final int CONCURRENCY = 256;
+
+    @Param({"1024", "16384", "262144"})
+    public int size;
+
+    private RDatagramChannel sender;
+    private RDatagramChannel receiver;
+    private InetSocketAddress receiverAddress;
+    private ByteBuffer message;
+    private final Semaphore received = new Semaphore(0);
+
+    @Setup(Level.Trial)
+    public void setup() {
+        sender = RDatagramChannel.open(SENDER_PORT);
+        receiver = RDatagramChannel.open(RECEIVER_PORT);
+        receiver.setReceiveListener(rDatagram -> received.release());
+        receiverAddress = new InetSocketAddress("127.0.0.1", RECEIVER_PORT);
+        message = ByteBuffer.allocate(size);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        sender.close();
+        receiver.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CONCURRENCY)
+    public void sendConcurrently() throws InterruptedException {
+        for (int i = 0; i < CONCURRENCY; i++) sender.send(message.duplicate(), receiverAddress);
+        if (!received.tryAcquire(CONCURRENCY, 60, TimeUnit.SECONDS)) throw new IllegalStateException("messages lost");
+    }
+}
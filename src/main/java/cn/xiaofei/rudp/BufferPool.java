@@ -0,0 +1,155 @@
+package cn.xiaofei.rudp;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 接收缓冲池。缓冲区为直接内存，按块（slab）分配：池中没有空闲缓冲区时一次分配一整块，切成若干个缓冲区。
+ * 缓冲区用完后归还，池中最多保留maxPooled个空闲缓冲区，多余的交给GC回收。
+ * <p>线程安全。
+ *
+ * @author Xiao Fei, jdfohewk@gmail.com
+ * @version 2021.1
+ */
+public final class BufferPool {
+    /**
+     * 每块包含的缓冲区个数
+     */
+    static final int SLAB_BUFFERS = 32;
+
+    private final int bufferSize;
+    private volatile int maxPooled;
+    private final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger(); //空闲缓冲区数
+    private final AtomicInteger inUse = new AtomicInteger(); //正在使用的缓冲区数
+    private final AtomicLong allocated = new AtomicLong(); //分配过的缓冲区总数
+    private final AtomicLong slabs = new AtomicLong(); //分配过的块数
+    private final AtomicLong acquired = new AtomicLong(); //取出缓冲区的次数
+    private final AtomicLong discarded = new AtomicLong(); //归还时池已满而丢弃的缓冲区数
+
+    BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * 取出一个缓冲区，position为0，limit为容量
+     */
+    ByteBuffer acquire() {
+        acquired.incrementAndGet();
+        inUse.incrementAndGet();
+        ByteBuffer buffer = free.poll();
+        if (buffer != null) {
+            pooled.decrementAndGet();
+            buffer.clear();
+            return buffer;
+        }
+        return allocateSlab();
+    }
+
+    /**
+     * 归还缓冲区
+     */
+    void release(ByteBuffer buffer) {
+        inUse.decrementAndGet();
+        if (pooled.incrementAndGet() > maxPooled) {
+            pooled.decrementAndGet();
+            discarded.incrementAndGet();
+            return;
+        }
+        free.offer(buffer);
+    }
+
+    private ByteBuffer allocateSlab() {
+        ByteBuffer slab = ByteBuffer.allocateDirect(bufferSize * SLAB_BUFFERS);
+        slabs.incrementAndGet();
+        allocated.addAndGet(SLAB_BUFFERS);
+        ByteBuffer first = null;
+        for (int i = 0; i < SLAB_BUFFERS; i++) {
+            slab.limit((i + 1) * bufferSize).position(i * bufferSize);
+            ByteBuffer buffer = slab.slice();
+            if (first == null) {
+                first = buffer;
+            } else if (pooled.incrementAndGet() <= maxPooled) {
+                free.offer(buffer);
+            } else {
+                pooled.decrementAndGet();
+                break;
+            }
+        }
+        return first;
+    }
+
+    /**
+     * 设置池中最多保留的空闲缓冲区个数
+     */
+    void setMaxPooled(int maxPooled) {
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * 每个缓冲区的字节数
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * 池中最多保留的空闲缓冲区个数
+     */
+    public int getMaxPooled() {
+        return maxPooled;
+    }
+
+    /**
+     * 当前空闲的缓冲区个数
+     */
+    public int getPooled() {
+        return pooled.get();
+    }
+
+    /**
+     * 当前正在使用（接收中或等待整合）的缓冲区个数
+     */
+    public int getInUse() {
+        return inUse.get();
+    }
+
+    /**
+     * 分配过的缓冲区总数
+     */
+    public long getAllocated() {
+        return allocated.get();
+    }
+
+    /**
+     * 分配过的块数，每块{@value #SLAB_BUFFERS}个缓冲区
+     */
+    public long getSlabs() {
+        return slabs.get();
+    }
+
+    /**
+     * 取出缓冲区的总次数。与{@link #getAllocated()}之比反映了复用率
+     */
+    public long getAcquired() {
+        return acquired.get();
+    }
+
+    /**
+     * 归还时池已满而丢弃的缓冲区数
+     */
+    public long getDiscarded() {
+        return discarded.get();
+    }
+
+    @Override
+    public String toString() {
+        return "BufferPool{bufferSize=" + bufferSize + ", maxPooled=" + maxPooled + ", pooled=" + getPooled()
+                + ", inUse=" + getInUse() + ", allocated=" + getAllocated() + ", slabs=" + getSlabs()
+                + ", acquired=" + getAcquired() + ", discarded=" + getDiscarded() + "}";
+    }
+}
@@ -0,0 +1,176 @@
+package cn.xiaofei.rudp;
+
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * 信道的指标：计数器用LongAdder，多个事件循环同时累加也不争用；RTT和消息延迟用{@link Histogram}记录。
+ * 拉取方式：{@link #snapshot()}得到某一时刻的快照，或者通过JMX（{@link RDatagramChannel#registerMBean()}）查看。
+ */
+public final class ChannelMetrics implements RDatagramChannelMXBean {
+    final LongAdder packetsSent = new LongAdder();
+    final LongAdder bytesSent = new LongAdder();
+    final LongAdder packetsReceived = new LongAdder();
+    final LongAdder bytesReceived = new LongAdder();
+    final LongAdder dataPacketsSent = new LongAdder();
+    final LongAdder retransmissions = new LongAdder();
+    final LongAdder duplicates = new LongAdder();
+    final LongAdder memoryDrops = new LongAdder();
+    final LongAdder fecRecovered = new LongAdder();
+    final LongAdder connectFailures = new LongAdder();
+    final LongAdder resets = new LongAdder();
+    final LongAdder messagesSent = new LongAdder();
+    final LongAdder messagesFailed = new LongAdder();
+    final LongAdder messagesExpired = new LongAdder();
+    final LongAdder messagesReceived = new LongAdder();
+    final LongAdder errors = new LongAdder();
+    final Histogram rtt = new Histogram();
+    final Histogram messageLatency = new Histogram();
+
+    private final LongSupplier receiveMemory;
+    private final Supplier<List<MetricsSnapshot.PeerStats>> peers;
+
+    ChannelMetrics(LongSupplier receiveMemory, Supplier<List<MetricsSnapshot.PeerStats>> peers) {
+        this.receiveMemory = receiveMemory;
+        this.peers = peers;
+    }
+
+    /**
+     * 当前的快照，包括各对端的发送状态
+     */
+    public MetricsSnapshot snapshot() {
+        return new MetricsSnapshot(this, receiveMemory.getAsLong(), peers.get());
+    }
+
+    @Override
+    public long getPacketsSent() {
+        return packetsSent.sum();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    @Override
+    public long getPacketsReceived() {
+        return packetsReceived.sum();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    @Override
+    public long getRetransmissions() {
+        return retransmissions.sum();
+    }
+
+    @Override
+    public double getRetransmitRatio() {
+        long sent = dataPacketsSent.sum();
+        return sent == 0 ? 0 : (double) retransmissions.sum() / sent;
+    }
+
+    @Override
+    public long getDuplicates() {
+        return duplicates.sum();
+    }
+
+    @Override
+    public long getMemoryDrops() {
+        return memoryDrops.sum();
+    }
+
+    @Override
+    public long getFecRecovered() {
+        return fecRecovered.sum();
+    }
+
+    @Override
+    public long getConnectFailures() {
+        return connectFailures.sum();
+    }
+
+    @Override
+    public long getResets() {
+        return resets.sum();
+    }
+
+    @Override
+    public long getMessagesSent() {
+        return messagesSent.sum();
+    }
+
+    @Override
+    public long getMessagesFailed() {
+        return messagesFailed.sum();
+    }
+
+    @Override
+    public long getMessagesExpired() {
+        return messagesExpired.sum();
+    }
+
+    @Override
+    public long getMessagesReceived() {
+        return messagesReceived.sum();
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    @Override
+    public long getReceiveMemory() {
+        return receiveMemory.getAsLong();
+    }
+
+    @Override
+    public int getPeerCount() {
+        return peers.get().size();
+    }
+
+    @Override
+    public int getPacketsInFlight() {
+        int sum = 0;
+        for (MetricsSnapshot.PeerStats peer : peers.get()) sum += peer.getInFlight();
+        return sum;
+    }
+
+    @Override
+    public int getQueuedMessages() {
+        int sum = 0;
+        for (MetricsSnapshot.PeerStats peer : peers.get()) sum += peer.getQueuedMessages();
+        return sum;
+    }
+
+    @Override
+    public long getRttP50Micros() {
+        return rtt.snapshot().getPercentile(50);
+    }
+
+    @Override
+    public long getRttP99Micros() {
+        return rtt.snapshot().getPercentile(99);
+    }
+
+    @Override
+    public long getMessageLatencyP50Micros() {
+        return messageLatency.snapshot().getPercentile(50);
+    }
+
+    @Override
+    public long getMessageLatencyP99Micros() {
+        return messageLatency.snapshot().getPercentile(99);
+    }
+
+    @Override
+    public long getMessageLatencyP999Micros() {
+        return messageLatency.snapshot().getPercentile(99.9);
+    }
+}
@@ -0,0 +1,17 @@
+package cn.xiaofei.rudp;
+
+/**
+ * 信道使用的时钟，用于重传超时、RTT、延迟确认、会话过期等所有计时。
+ * 默认为{@link #SYSTEM}；测试时可以换成{@link VirtualClock}，由测试推进时间，见{@link RDatagramChannel#open(int, int, DatagramTransport.Factory, Clock)}
+ */
+public interface Clock {
+    /**
+     * 系统时钟，即{@link System#nanoTime()}
+     */
+    Clock SYSTEM = System::nanoTime;
+
+    /**
+     * 当前时间(ns)，只用于计算时间间隔
+     */
+    long nanoTime();
+}
@@ -0,0 +1,161 @@
+package cn.xiaofei.rudp;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 消息压缩，使用JDK的Deflater（无zlib头，最快的级别）。压缩后的消息为：原始长度（8字节），之后为压缩数据。
+ * 发送方在分段之前压缩整个消息，数据包带{@link RDatagram#FLAG_COMPRESSED}；接收方整合之后解压，流式接收时边收边解压。
+ */
+final class Compression {
+    /**
+     * 压缩后的消息开头的原始长度的字节数
+     */
+    static final int HEADER = 8;
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private Compression() {
+    }
+
+    /**
+     * 压缩data的position到limit之间的数据，不改变position
+     *
+     * @return 压缩后的消息，不比原数据小则返回null
+     */
+    static ByteBuffer deflate(ByteBuffer data) {
+        int length = data.remaining();
+        byte[] input = new byte[Math.min(length, BUFFER_SIZE)];
+        byte[] output = new byte[HEADER + length]; //超过原长度即放弃
+        ByteBuffer.wrap(output).putLong(0, length);
+        int written = HEADER;
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            ByteBuffer source = data.duplicate();
+            while (true) {
+                if (deflater.needsInput()) {
+                    if (source.hasRemaining()) {
+                        int n = Math.min(input.length, source.remaining());
+                        source.get(input, 0, n);
+                        deflater.setInput(input, 0, n);
+                    } else {
+                        deflater.finish();
+                    }
+                }
+                if (written >= length) return null; //压缩后不比原数据小
+                written += deflater.deflate(output, written, Math.min(output.length, length) - written);
+                if (deflater.finished()) break;
+            }
+        } finally {
+            deflater.end();
+        }
+        if (written >= length) return null;
+        return ByteBuffer.wrap(output, 0, written);
+    }
+
+    /**
+     * 压缩后的消息开头声明的原始长度
+     *
+     * @return 原始长度，消息不完整或长度超过{@link RDatagramChannel#MAX_MESSAGE_LENGTH}则返回-1
+     */
+    static long originalLength(byte[] message) {
+        if (message.length < HEADER) return -1;
+        long length = ByteBuffer.wrap(message).getLong(0);
+        return length < 0 || length > RDatagramChannel.MAX_MESSAGE_LENGTH ? -1 : length;
+    }
+
+    /**
+     * 解压整个消息。输出数组随解压出的数据逐步扩大，不按声明的原始长度一次分配，声明的长度与实际不符时也不会多占内存
+     *
+     * @return 原始数据，数据损坏则返回null
+     */
+    static byte[] inflate(byte[] message) {
+        long length = originalLength(message);
+        if (length < 0) return null;
+        byte[] output = new byte[(int) Math.min(length, Math.max(BUFFER_SIZE, (long) message.length * 4))];
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(message, HEADER, message.length - HEADER);
+            int read = 0;
+            while (read < length) {
+                if (read == output.length)
+                    output = Arrays.copyOf(output, (int) Math.min(length, (long) output.length * 2));
+                int n = inflater.inflate(output, read, output.length - read);
+                if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) break;
+                read += n;
+            }
+            return read == length ? output : null;
+        } catch (DataFormatException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * 流式接收时边收边解压，把解压出的数据交给流式接收监听器，偏移按解压后的数据计算。
+     * 只在回调线程上使用
+     */
+    static final class StreamInflater {
+        private final StreamReceiveListener listener;
+        private final long receiveId;
+        private final Inflater inflater = new Inflater(true);
+        private final byte[] input = new byte[BUFFER_SIZE];
+        private final byte[] output = new byte[BUFFER_SIZE];
+        private int skip = HEADER; //还没有跳过的原始长度字节数
+        private long offset = 0; //已交出的解压后的字节数
+        private boolean failed = false;
+
+        StreamInflater(StreamReceiveListener listener, long receiveId) {
+            this.listener = listener;
+            this.receiveId = receiveId;
+        }
+
+        /**
+         * 解压一段按序收到的压缩数据，交给监听器
+         */
+        void onChunk(InetSocketAddress address, ByteBuffer chunk) {
+            if (failed) return;
+            ByteBuffer source = chunk.duplicate();
+            int n = Math.min(skip, source.remaining());
+            source.position(source.position() + n);
+            skip -= n;
+            try {
+                while (source.hasRemaining()) {
+                    int len = Math.min(input.length, source.remaining());
+                    source.get(input, 0, len);
+                    inflater.setInput(input, 0, len);
+                    int out;
+                    while ((out = inflater.inflate(output)) > 0) {
+                        listener.onChunk(receiveId, address, offset, ByteBuffer.wrap(output, 0, out).asReadOnlyBuffer());
+                        offset += out;
+                    }
+                }
+            } catch (DataFormatException e) {
+                e.printStackTrace();
+                failed = true;
+                inflater.end();
+            }
+        }
+
+        /**
+         * 解压后的总字节数
+         */
+        long length() {
+            return offset;
+        }
+
+        /**
+         * 消息结束，释放解压器
+         */
+        void end() {
+            if (!failed) inflater.end();
+            failed = true;
+        }
+    }
+}
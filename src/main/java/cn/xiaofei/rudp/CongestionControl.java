@@ -0,0 +1,24 @@
+package cn.xiaofei.rudp;
+
+/**
+ * 拥塞控制算法，按信道设置，见 {@link RDatagramChannel#setCongestionControl(CongestionControl)}
+ *
+ * @author Xiao Fei, jdfohewk@gmail.com
+ * @version 2021.1
+ */
+public enum CongestionControl {
+    /**
+     * 不做拥塞控制，每次传输只受最大发送窗口限制
+     */
+    NONE,
+
+    /**
+     * 慢启动 + 加性增、乘性减（类似TCP Reno）
+     */
+    AIMD,
+
+    /**
+     * 慢启动 + CUBIC窗口增长，丢包后窗口降为原来的0.7倍
+     */
+    CUBIC
+}
@@ -0,0 +1,141 @@
+package cn.xiaofei.rudp;
+
+/**
+ * 拥塞窗口，以数据包个数计。每个对端地址一个，由发往该地址的所有传输共享。
+ * <p>慢启动阶段每收到一个ACK窗口加一；进入拥塞避免后，AIMD每个RTT加一，CUBIC按距上次丢包的时间以三次函数增长。
+ * 检测到丢包时窗口乘性减小，减小之前发出的包再丢失不会重复减小。
+ * <p>时间单位为纳秒（信道的{@link Clock}）。非线程安全，只由对端所属的事件循环线程修改；
+ * 指标快照从其他线程读取{@link #size()}和{@link #inFlight()}，这两个值为volatile，读到的是最近写入的值，但彼此不一定一致。
+ */
+final class CongestionWindow {
+    static final int INITIAL_WINDOW = 10; //初始窗口
+    static final int MIN_WINDOW = 2; //最小窗口
+
+    private static final double AIMD_BETA = 0.5;
+    private static final double CUBIC_BETA = 0.7;
+    private static final double CUBIC_C = 0.4;
+
+    private final CongestionControl algorithm;
+    private final int maxWindow;
+
+    private volatile double cwnd = INITIAL_WINDOW;
+    private double ssthresh;
+    private volatile int inFlight = 0; //已发出但未确认的包数
+    private boolean reduced = false;
+    private long lastReduction = 0; //上次减小窗口的时间
+
+    //CUBIC状态
+    private double wMax = 0;
+    private double k = 0;
+    private boolean inEpoch = false;
+    private long epochStart = 0;
+
+    CongestionWindow(CongestionControl algorithm, int maxWindow) {
+        this.algorithm = algorithm;
+        this.maxWindow = Math.max(maxWindow, MIN_WINDOW);
+        this.ssthresh = this.maxWindow;
+    }
+
+    /**
+     * 当前窗口大小
+     */
+    int size() {
+        if (algorithm == CongestionControl.NONE) return maxWindow;
+        return (int) Math.min(cwnd, maxWindow);
+    }
+
+    int inFlight() {
+        return inFlight;
+    }
+
+    /**
+     * 是否处于慢启动阶段，此时窗口每个RTT翻倍
+     */
+    boolean inSlowStart() {
+        return algorithm != CongestionControl.NONE && cwnd < ssthresh;
+    }
+
+    boolean canSend() {
+        return inFlight < size();
+    }
+
+    /**
+     * 发出一个新包
+     */
+    void onSend() {
+        inFlight++;
+    }
+
+    /**
+     * 放弃若干个已发出但未确认的包（传输失败）
+     */
+    void onRelease(int packets) {
+        inFlight = Math.max(0, inFlight - packets);
+    }
+
+    /**
+     * 一个已发出的包被确认
+     *
+     * @param now 当前时间
+     */
+    void onAck(long now) {
+        if (inFlight > 0) inFlight--;
+        if (algorithm == CongestionControl.NONE) return;
+        if (cwnd < ssthresh) {
+            cwnd += 1;
+        } else if (algorithm == CongestionControl.AIMD) {
+            cwnd += 1 / cwnd;
+        } else {
+            cubicIncrease(now);
+        }
+        if (cwnd > maxWindow) cwnd = maxWindow;
+    }
+
+    /**
+     * 一个包超时未确认，视为丢包
+     *
+     * @param sentAt 该包上次发送的时间
+     * @param now    当前时间
+     */
+    void onLoss(long sentAt, long now) {
+        if (algorithm == CongestionControl.NONE) return;
+        if (reduced && sentAt - lastReduction <= 0) return; //减窗之前发出的包，已经处理过
+        reduced = true;
+        lastReduction = now;
+        if (algorithm == CongestionControl.AIMD) {
+            cwnd = Math.max(cwnd * AIMD_BETA, MIN_WINDOW);
+        } else {
+            wMax = cwnd;
+            cwnd = Math.max(cwnd * CUBIC_BETA, MIN_WINDOW);
+            inEpoch = false;
+        }
+        ssthresh = cwnd;
+    }
+
+    /**
+     * 包的大小变化时按比例缩放窗口，使窗口对应的字节数大致不变。factor为旧的包大小与新的包大小之比
+     */
+    void scale(double factor) {
+        cwnd = Math.min(Math.max(cwnd * factor, MIN_WINDOW), maxWindow);
+        if (ssthresh < maxWindow) ssthresh = Math.max(ssthresh * factor, MIN_WINDOW);
+        wMax *= factor;
+        inEpoch = false;
+    }
+
+    private void cubicIncrease(long now) {
+        if (!inEpoch) {
+            inEpoch = true;
+            epochStart = now;
+            if (cwnd < wMax) {
+                k = Math.cbrt((wMax - cwnd) / CUBIC_C);
+            } else {
+                k = 0;
+                wMax = cwnd;
+            }
+        }
+        double t = (now - epochStart) / 1e9 - k;
+        double target = CUBIC_C * t * t * t + wMax;
+        if (target > cwnd) cwnd += (target - cwnd) / cwnd;
+        else cwnd += 0.01 / cwnd;
+    }
+}
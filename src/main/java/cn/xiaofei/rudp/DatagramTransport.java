@@ -0,0 +1,64 @@
+package cn.xiaofei.rudp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.nio.ByteBuffer;
+
+/**
+ * 信道收发数据报的方式。默认为UDP（{@link #UDP}），也可以换成其他实现，如用{@link NetworkImpairment}模拟丢包、乱序、延迟的网络。
+ * <p>每个事件循环有一个传输，除{@link #wakeup()}、{@link #setOption(SocketOption, Object)}和{@link #close()}外只由该事件循环线程调用。
+ */
+public interface DatagramTransport extends Closeable {
+    /**
+     * UDP传输，非阻塞的DatagramChannel加Selector
+     */
+    Factory UDP = UdpTransport::open;
+
+    /**
+     * 读取一个已到达的数据报，不阻塞。超过dst剩余空间的部分被丢弃
+     *
+     * @return 发送方地址，没有数据报时返回null
+     */
+    InetSocketAddress receive(ByteBuffer dst) throws IOException;
+
+    /**
+     * 发送src中剩余的字节，不阻塞
+     *
+     * @return 发出的字节数，系统缓冲区已满时为0，调用方重试
+     */
+    int send(ByteBuffer src, InetSocketAddress target) throws IOException;
+
+    /**
+     * 等待数据报到达
+     *
+     * @param timeoutNanos 最长等待时间(ns)，0为不等待，负数为一直等待
+     */
+    void await(long timeoutNanos) throws IOException;
+
+    /**
+     * 使正在进行或下一次的{@link #await(long)}立即返回，可以在任意线程调用
+     */
+    void wakeup();
+
+    /**
+     * 设置套接字选项，不支持时抛出UnsupportedOperationException
+     */
+    default <T> void setOption(SocketOption<T> name, T value) throws IOException {
+        throw new UnsupportedOperationException(name.name());
+    }
+
+    /**
+     * 为信道打开传输，每个事件循环调用一次
+     */
+    @FunctionalInterface
+    interface Factory {
+        /**
+         * @param port      本地端口号
+         * @param shard     事件循环的编号，从0开始
+         * @param reusePort 是否有多个事件循环绑定同一端口，UDP传输需要开启SO_REUSEPORT
+         */
+        DatagramTransport open(int port, int shard, boolean reusePort) throws IOException;
+    }
+}
@@ -0,0 +1,43 @@
+package cn.xiaofei.rudp;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 去重缓存，记录最近见过的key，每个key保留一段时间，超过容量时淘汰最早的。
+ * 按加入的顺序排队，加入时顺便清理队首过期的key，没有额外的定时任务。
+ * <p>非线程安全，只在事件循环线程上使用。
+ */
+final class DedupeCache<K> {
+    private final int capacity;
+    private final Map<K, Long> seen = new HashMap<>(); //value为加入的时间(ns)
+    private final Deque<K> order = new ArrayDeque<>();
+
+    DedupeCache(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * 记录key
+     *
+     * @param now 当前时间(ns)
+     * @param ttl 保留时间(ns)
+     * @return key不在缓存中则返回true，即第一次见到
+     */
+    boolean add(K key, long now, long ttl) {
+        K head;
+        while ((head = order.peekFirst()) != null && (order.size() >= capacity || now - seen.get(head) >= ttl)) {
+            order.pollFirst();
+            seen.remove(head);
+        }
+        if (seen.putIfAbsent(key, now) != null) return false;
+        order.addLast(key);
+        return true;
+    }
+
+    int size() {
+        return seen.size();
+    }
+}
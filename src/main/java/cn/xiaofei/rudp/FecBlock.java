@@ -0,0 +1,127 @@
+package cn.xiaofei.rudp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * XOR前向纠错的一个块：消息中连续的若干个数据包，加一个校验包（{@link RDatagram#TYPE_PARITY}）。
+ * 校验包的内容为块内各数据包内容长度的异或（2字节），之后为各数据包内容（短的在后面补0）的异或。
+ * 块内只丢了一个数据包时，把校验包和其余数据包异或起来即得到丢失的包，不需要等重传。
+ * <p>发送方用它累积校验包，缓冲区前面留出包头的位置，可以直接发出；接收方用它累积已收到的数据包，收到校验包后恢复。
+ * <p>非线程安全，只在事件循环线程上使用。
+ */
+final class FecBlock {
+    /**
+     * 校验包内容比数据包多出的字节数，即长度的异或
+     */
+    static final int OVERHEAD = 2;
+
+    /**
+     * 块内最多的数据包数，校验包的标志位中放得下
+     */
+    static final int MAX_PACKETS = 0x7f;
+
+    /**
+     * 校验包标志位的最高位：块内最后一个包是消息的最后一个包。其余7位为块内的数据包数
+     */
+    static final int LAST = 0x80;
+
+    private static final int LENGTH = RDatagram.HEADER_LENGTH;
+    private static final int PAYLOAD = LENGTH + OVERHEAD;
+
+    private final ByteBuffer data; //包头位置 + 长度的异或 + 内容的异或
+    int start; //块内第一个数据包的下标
+    int packets; //已累积的数据包数
+    int maxLength; //已累积的数据包中最长的内容字节数
+    boolean parity; //是否已累积校验包
+    int count = -1; //块内的数据包数，接收方收到校验包之前不知道
+    boolean last; //块内最后一个包是否是消息的最后一个包
+
+    FecBlock(int segmentSize) {
+        data = ByteBuffer.allocate(PAYLOAD + segmentSize);
+    }
+
+    /**
+     * 清空，开始累积从start开始的块
+     */
+    void reset(int start) {
+        this.start = start;
+        int end = PAYLOAD + maxLength;
+        for (int i = LENGTH; i < end; i++) data.put(i, (byte) 0);
+        packets = 0;
+        maxLength = 0;
+        parity = false;
+        count = -1;
+        last = false;
+    }
+
+    /**
+     * 异或一个数据包的内容
+     *
+     * @param payload 内容为position到limit之间的字节，不改变position
+     */
+    void add(ByteBuffer payload) {
+        int length = payload.remaining();
+        data.putShort(LENGTH, (short) (data.getShort(LENGTH) ^ length));
+        xor(payload, length);
+        packets++;
+    }
+
+    /**
+     * 异或校验包的内容，之后可以恢复块内唯一缺少的数据包
+     *
+     * @param payload 校验包的内容，长度的异或在前，不改变position
+     * @param flags   校验包的标志位
+     */
+    void addParity(ByteBuffer payload, int flags) {
+        int length = payload.remaining() - OVERHEAD;
+        if (length < 0 || length > data.capacity() - PAYLOAD) return;
+        int position = payload.position();
+        data.putShort(LENGTH, (short) (data.getShort(LENGTH) ^ payload.getShort(position)));
+        ByteBuffer rest = payload.duplicate();
+        rest.position(position + OVERHEAD);
+        xor(rest, length);
+        parity = true;
+        count = flags & MAX_PACKETS;
+        last = (flags & LAST) != 0;
+    }
+
+    private void xor(ByteBuffer payload, int length) {
+        int from = payload.position();
+        int i = 0;
+        for (; i + 8 <= length; i += 8)
+            data.putLong(PAYLOAD + i, data.getLong(PAYLOAD + i) ^ payload.getLong(from + i));
+        for (; i < length; i++)
+            data.put(PAYLOAD + i, (byte) (data.get(PAYLOAD + i) ^ payload.get(from + i)));
+        maxLength = Math.max(maxLength, length);
+    }
+
+    /**
+     * 发送方：写好包头，返回完整的校验包，发送之前不能再修改这个块
+     *
+     * @param flags 块内的数据包数，最后一个块再加上{@link #LAST}
+     */
+    ByteBuffer parityPacket(long sendId, long receiveId, int flags) {
+        int length = PAYLOAD + maxLength;
+        Header.write(data, start, length, RDatagram.TYPE_PARITY, sendId, receiveId);
+        Header.setFlags(data, (byte) flags);
+        ByteBuffer packet = data.duplicate();
+        packet.position(0).limit(length);
+        return packet;
+    }
+
+    /**
+     * 接收方：恢复出的数据包的内容字节数，只在已累积校验包和其余所有数据包时有意义
+     */
+    int recoveredLength() {
+        return data.getShort(LENGTH) & 0xffff;
+    }
+
+    /**
+     * 接收方：把恢复出的内容写到out的position处，position随之前移
+     */
+    void writeRecovered(ByteBuffer out, int length) {
+        ByteBuffer payload = data.duplicate();
+        payload.position(PAYLOAD).limit(PAYLOAD + length);
+        out.put(payload);
+    }
+}
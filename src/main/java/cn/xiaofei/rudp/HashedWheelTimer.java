@@ -0,0 +1,153 @@
+package cn.xiaofei.rudp;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 哈希时间轮定时器。添加和取消都是O(1)，与任务数无关。
+ * <p>时间轮有若干个槽，每个槽对应一个刻度。任务按到期的刻度放进对应的槽，到期时间超过一圈的任务记下还要转过的圈数。
+ * 每过一个刻度处理一个槽，执行其中到期的任务。因此任务最多比预定时间晚一个刻度执行。
+ * <p>定时器没有自己的线程，由所属的事件循环调用{@link #advance()}推进，任务也在事件循环上执行，不应阻塞。
+ * 非线程安全，只能在事件循环线程上使用。
+ */
+final class HashedWheelTimer {
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final Clock clock;
+    private final long startTime;
+
+    private long tick = 0; //下一个要处理的刻度
+    private int pending = 0; //尚未执行也未取消的任务数
+
+    /**
+     * @param tick      刻度长度
+     * @param unit      刻度长度的单位
+     * @param wheelSize 槽数，向上取整为2的幂
+     * @param clock     时钟
+     */
+    HashedWheelTimer(long tick, TimeUnit unit, int wheelSize, Clock clock) {
+        tickNanos = Math.max(unit.toNanos(tick), 1);
+        int size = 1;
+        while (size < wheelSize) size <<= 1;
+        wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) wheel[i] = new Bucket();
+        mask = size - 1;
+        this.clock = clock;
+        startTime = clock.nanoTime();
+    }
+
+    /**
+     * 安排一个任务在delay之后执行
+     *
+     * @return 可以用来取消任务
+     */
+    Timeout newTimeout(Runnable task, long delay, TimeUnit unit) {
+        long deadline = clock.nanoTime() - startTime + unit.toNanos(Math.max(delay, 0));
+        Timeout timeout = new Timeout(this, task);
+        long ticks = deadline / tickNanos;
+        timeout.remainingRounds = (ticks - tick) / wheel.length;
+        long index = Math.max(ticks, tick); //已经过期的放进下一个要处理的槽
+        wheel[(int) (index & mask)].add(timeout);
+        pending++;
+        return timeout;
+    }
+
+    /**
+     * 尚未执行也未取消的任务数
+     */
+    int size() {
+        return pending;
+    }
+
+    /**
+     * 距离下一个刻度的时间(ns)，为0表示已经可以推进
+     */
+    long nanosToNextTick() {
+        return Math.max(0, tickNanos * (tick + 1) - (clock.nanoTime() - startTime));
+    }
+
+    /**
+     * 处理所有已经过去的刻度，执行到期的任务
+     */
+    void advance() {
+        long now = clock.nanoTime() - startTime;
+        while (tickNanos * (tick + 1) <= now) {
+            Bucket bucket = wheel[(int) (tick & mask)];
+            tick++; //先推进，任务中新安排的已到期任务放进下一个槽
+            expire(bucket);
+        }
+    }
+
+    private void expire(Bucket bucket) {
+        Timeout timeout = bucket.head;
+        bucket.head = bucket.tail = null; //摘下整个链表，任务中取消或新安排的任务不影响遍历
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            timeout.next = null;
+            if (timeout.state == Timeout.CANCELLED) {
+                //取消时只做标记，在这里移除
+            } else if (timeout.remainingRounds > 0) {
+                timeout.remainingRounds--;
+                bucket.add(timeout);
+            } else {
+                timeout.state = Timeout.EXPIRED;
+                pending--;
+                try {
+                    timeout.task.run();
+                } catch (Throwable e) {
+                    e.printStackTrace();
+                }
+            }
+            timeout = next;
+        }
+    }
+
+    /**
+     * 一个定时任务
+     */
+    static final class Timeout {
+        static final int INIT = 0;
+        static final int CANCELLED = 1;
+        static final int EXPIRED = 2;
+
+        private final HashedWheelTimer timer;
+        private final Runnable task;
+        private long remainingRounds;
+        private int state = INIT;
+        private Timeout next; //同一个槽中的下一个任务
+
+        Timeout(HashedWheelTimer timer, Runnable task) {
+            this.timer = timer;
+            this.task = task;
+        }
+
+        /**
+         * 取消任务。只做标记，任务所在的槽到期时移除
+         *
+         * @return 任务尚未执行并且成功取消
+         */
+        boolean cancel() {
+            if (state != INIT) return false;
+            state = CANCELLED;
+            timer.pending--;
+            return true;
+        }
+    }
+
+    /**
+     * 时间轮的一个槽，单向链表
+     */
+    private static final class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                tail = timeout;
+            }
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package cn.xiaofei.rudp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * RUDP包头的编解码。包头共24字节，大端：
+ * <pre>
+ * byte[0-3]   序列号。数据包为它在消息中的下标
+ * byte[4-5]   数据字节数，包含头
+ * byte[6]     标志位，见RDatagram.FLAG_*
+ * byte[7]     数据类型
+ * byte[8-15]  发送id
+ * byte[16-23] 接收id
+ * </pre>
+ * 所有方法都按绝对位置读写，不改变缓冲区的position和limit，也不分配内存，堆内缓冲区和直接缓冲区都适用。
+ */
+final class Header {
+    static final int LENGTH = 24;
+
+    static final int SEQ = 0;
+    static final int TOTAL_LENGTH = 4;
+    static final int FLAGS = 6;
+    static final int TYPE = 7;
+    static final int SEND_ID = 8;
+    static final int RECEIVE_ID = 16;
+
+    private Header() {
+    }
+
+    static int seq(ByteBuffer buffer) {
+        return buffer.getInt(SEQ);
+    }
+
+    static int totalLength(ByteBuffer buffer) {
+        return buffer.getShort(TOTAL_LENGTH) & 0xffff;
+    }
+
+    static byte flags(ByteBuffer buffer) {
+        return buffer.get(FLAGS);
+    }
+
+    static void setFlags(ByteBuffer buffer, byte flags) {
+        buffer.put(FLAGS, flags);
+    }
+
+    static byte type(ByteBuffer buffer) {
+        return buffer.get(TYPE);
+    }
+
+    static long sendId(ByteBuffer buffer) {
+        return buffer.getLong(SEND_ID);
+    }
+
+    static long receiveId(ByteBuffer buffer) {
+        return buffer.getLong(RECEIVE_ID);
+    }
+
+    static void setReceiveId(ByteBuffer buffer, long receiveId) {
+        buffer.putLong(RECEIVE_ID, receiveId);
+    }
+
+    /**
+     * 写入整个包头
+     */
+    static void write(ByteBuffer buffer, int seq, int totalLength, byte type, long sendId, long receiveId) {
+        buffer.putInt(SEQ, seq);
+        buffer.putShort(TOTAL_LENGTH, (short) totalLength);
+        buffer.put(FLAGS, (byte) 0);
+        buffer.put(TYPE, type);
+        buffer.putLong(SEND_ID, sendId);
+        buffer.putLong(RECEIVE_ID, receiveId);
+    }
+}
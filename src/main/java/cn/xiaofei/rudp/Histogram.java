@@ -0,0 +1,59 @@
+package cn.xiaofei.rudp;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 对数线性分桶的直方图，用于记录RTT、消息延迟等，单位为微秒。与HdrHistogram的思路相同：
+ * 按2的幂分段，每段再等分为{@value #SUB_BUCKETS}个桶，相对误差不超过1/{@value #SUB_BUCKETS}，记录只是一次原子自增，不分配内存。
+ * <p>线程安全，可以同时从多个事件循环记录，读取时复制一份快照。
+ */
+final class Histogram {
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * 记录一个值，负数忽略
+     *
+     * @param nanos 纳秒，按微秒记录
+     */
+    void recordNanos(long nanos) {
+        if (nanos < 0) return;
+        long micros = nanos / 1000;
+        counts.incrementAndGet(index(micros));
+        sum.add(micros);
+        long m;
+        while (micros > (m = max.get()) && !max.compareAndSet(m, micros)) ;
+    }
+
+    static int index(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    /**
+     * 桶的下界（包含）
+     */
+    static long lowerBound(int index) {
+        if (index < SUB_BUCKETS) return index;
+        int shift = index / SUB_BUCKETS - 1;
+        return (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+    }
+
+    HistogramSnapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+            count += copy[i];
+        }
+        return new HistogramSnapshot(copy, count, sum.sum(), max.get());
+    }
+}
@@ -0,0 +1,71 @@
+package cn.xiaofei.rudp;
+
+/**
+ * 直方图某一时刻的快照，单位为微秒。分位数取所在桶的中点，相对误差约为1/16
+ */
+public final class HistogramSnapshot {
+    private final long[] counts;
+    private final long count;
+    private final long sum;
+    private final long max;
+
+    HistogramSnapshot(long[] counts, long count, long sum, long max) {
+        this.counts = counts;
+        this.count = count;
+        this.sum = sum;
+        this.max = max;
+    }
+
+    /**
+     * 记录的值的个数
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * 平均值（微秒），没有记录时为0
+     */
+    public double getMean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * 最大值（微秒）
+     */
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * 分位数（微秒），没有记录时为0
+     *
+     * @param percentile 百分位，范围为(0, 100]，如99.9
+     */
+    public long getPercentile(double percentile) {
+        if (count == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(Math.min(percentile, 100) / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                long low = Histogram.lowerBound(i);
+                long high = Histogram.lowerBound(i + 1);
+                return Math.min(low + (high - low) / 2, max);
+            }
+        }
+        return max;
+    }
+
+    @Override
+    public String toString() {
+        return "HistogramSnapshot{" +
+                "count=" + count +
+                ", mean=" + (long) getMean() +
+                ", p50=" + getPercentile(50) +
+                ", p99=" + getPercentile(99) +
+                ", p999=" + getPercentile(99.9) +
+                ", max=" + max +
+                '}';
+    }
+}
@@ -0,0 +1,145 @@
+package cn.xiaofei.rudp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.nio.ByteBuffer;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * 按{@link NetworkImpairment}的设置损伤发出的数据报：决定丢弃、重复之后复制一份，按到期时间排队，
+ * 在事件循环每次等待前后把到期的交给下层传输发出。收包不受影响。
+ * <p>与其他传输一样只由所属的事件循环使用，排队不加锁。
+ */
+final class ImpairedTransport implements DatagramTransport {
+    private final DatagramTransport delegate;
+    private final NetworkImpairment impairment;
+    private final Clock clock;
+    private final Random random;
+    private final PriorityQueue<Delayed> queue = new PriorityQueue<>();
+    private long order = 0; //排队的顺序，到期时间相同时先进先出
+    private long linkFree = Long.MIN_VALUE; //限速时链路空闲下来的时间(ns)
+
+    ImpairedTransport(DatagramTransport delegate, NetworkImpairment impairment, long seed) {
+        this.delegate = delegate;
+        this.impairment = impairment;
+        this.clock = impairment.clock();
+        this.random = new Random(seed);
+    }
+
+    @Override
+    public InetSocketAddress receive(ByteBuffer dst) throws IOException {
+        return delegate.receive(dst);
+    }
+
+    /**
+     * 总是接受整个数据报，丢弃的也当作已发出
+     */
+    @Override
+    public int send(ByteBuffer src, InetSocketAddress target) throws IOException {
+        int length = src.remaining();
+        impairment.sent.increment();
+        long now = clock.nanoTime();
+        if (random.nextDouble() < impairment.loss()) {
+            impairment.dropped.increment();
+        } else {
+            long bandwidth = impairment.bandwidth();
+            long departure = now;
+            if (bandwidth > 0) {
+                long start = Math.max(now, linkFree);
+                if ((start - now) * bandwidth / 1_000_000_000L + length > impairment.queueBytes()) {
+                    impairment.overflowed.increment();
+                    src.position(src.limit());
+                    return length;
+                }
+                linkFree = start + length * 1_000_000_000L / bandwidth;
+                departure = linkFree;
+            }
+            ByteBuffer copy = ByteBuffer.allocate(length);
+            copy.put(src.duplicate()).flip();
+            enqueue(copy, target, departure);
+            if (random.nextDouble() < impairment.duplicate()) {
+                impairment.duplicated.increment();
+                enqueue(copy.duplicate(), target, departure);
+            }
+        }
+        src.position(src.limit());
+        flush();
+        return length;
+    }
+
+    private void enqueue(ByteBuffer data, InetSocketAddress target, long departure) {
+        long due = departure + impairment.delayNanos();
+        long jitter = impairment.jitterNanos();
+        if (jitter > 0) due += (long) (random.nextDouble() * jitter);
+        if (impairment.reorder() > 0 && random.nextDouble() < impairment.reorder()) {
+            impairment.reordered.increment();
+            due += impairment.reorderDelayNanos();
+        }
+        queue.add(new Delayed(data, target, due, order++));
+    }
+
+    /**
+     * 发出所有已到期的数据报，下层缓冲区满时留到下一次
+     */
+    private void flush() throws IOException {
+        long now = clock.nanoTime();
+        Delayed next;
+        while ((next = queue.peek()) != null && next.due - now <= 0) {
+            delegate.send(next.data, next.target);
+            if (next.data.hasRemaining()) return;
+            queue.poll();
+        }
+    }
+
+    /**
+     * 先发出到期的数据报；还有排队的包时，使用系统时钟最多等到下一个到期，使用虚拟时钟则等时间推进时被唤醒
+     */
+    @Override
+    public void await(long timeoutNanos) throws IOException {
+        flush();
+        Delayed next = queue.peek();
+        if (next != null && !(clock instanceof VirtualClock)) {
+            long remaining = Math.max(next.due - clock.nanoTime(), 1);
+            timeoutNanos = timeoutNanos < 0 ? remaining : Math.min(timeoutNanos, remaining);
+        }
+        delegate.await(timeoutNanos);
+        flush();
+    }
+
+    @Override
+    public void wakeup() {
+        delegate.wakeup();
+    }
+
+    @Override
+    public <T> void setOption(SocketOption<T> name, T value) throws IOException {
+        delegate.setOption(name, value);
+    }
+
+    @Override
+    public void close() throws IOException {
+        delegate.close();
+    }
+
+    private static final class Delayed implements Comparable<Delayed> {
+        final ByteBuffer data;
+        final InetSocketAddress target;
+        final long due; //到期时间(ns)
+        final long order;
+
+        Delayed(ByteBuffer data, InetSocketAddress target, long due, long order) {
+            this.data = data;
+            this.target = target;
+            this.due = due;
+            this.order = order;
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            if (due != o.due) return Long.compare(due, o.due);
+            return Long.compare(order, o.order);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package cn.xiaofei.rudp;
+
+import java.util.function.Consumer;
+
+/**
+ * key为long的哈希表，开放寻址、线性探测，key不装箱，查找时不分配内存。用于按发送id、接收id查找。
+ * <p>key不能为0，0表示空槽（发送id和接收id都不为0）。删除时把后面同一探测链上的元素前移，不留墓碑。
+ * <p>非线程安全，只在事件循环线程上使用。
+ */
+final class LongHashMap<V> {
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private long[] keys;
+    private Object[] values;
+    private int mask;
+    private int size = 0;
+    private int resizeAt;
+
+    LongHashMap() {
+        this(16);
+    }
+
+    /**
+     * @param capacity 初始容量，向上取整为2的幂
+     */
+    LongHashMap(int capacity) {
+        int n = 2;
+        while (n < capacity) n <<= 1;
+        allocate(n);
+    }
+
+    private void allocate(int n) {
+        keys = new long[n];
+        values = new Object[n];
+        mask = n - 1;
+        resizeAt = (int) (n * LOAD_FACTOR);
+    }
+
+    /**
+     * 打散key的位，使相近的id也能均匀分布
+     */
+    private static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    private int indexOf(long key) {
+        int i = hash(key) & mask;
+        while (true) {
+            long k = keys[i];
+            if (k == key) return i;
+            if (k == 0) return -1;
+            i = (i + 1) & mask;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(long key) {
+        if (key == 0) return null;
+        int i = indexOf(key);
+        return i < 0 ? null : (V) values[i];
+    }
+
+    boolean containsKey(long key) {
+        return key != 0 && indexOf(key) >= 0;
+    }
+
+    /**
+     * @return 原来的值，没有则为null
+     */
+    @SuppressWarnings("unchecked")
+    V put(long key, V value) {
+        if (key == 0) throw new IllegalArgumentException("key must not be 0");
+        int i = hash(key) & mask;
+        while (true) {
+            long k = keys[i];
+            if (k == key) {
+                V old = (V) values[i];
+                values[i] = value;
+                return old;
+            }
+            if (k == 0) break;
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        if (++size > resizeAt) rehash();
+        return null;
+    }
+
+    /**
+     * @return 被删除的值，没有则为null
+     */
+    @SuppressWarnings("unchecked")
+    V remove(long key) {
+        if (key == 0) return null;
+        int i = indexOf(key);
+        if (i < 0) return null;
+        V old = (V) values[i];
+        size--;
+        //把后面探测链上不在自己位置的元素前移，填补空槽
+        int gap = i;
+        int j = (i + 1) & mask;
+        while (keys[j] != 0) {
+            int home = hash(keys[j]) & mask;
+            //home不在(gap, j]之间，说明它可以移到gap
+            if (((j - home) & mask) >= ((j - gap) & mask)) {
+                keys[gap] = keys[j];
+                values[gap] = values[j];
+                gap = j;
+            }
+            j = (j + 1) & mask;
+        }
+        keys[gap] = 0;
+        values[gap] = null;
+        return old;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * 遍历所有的值，遍历过程中不能修改
+     */
+    @SuppressWarnings("unchecked")
+    void forEachValue(Consumer<? super V> action) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != 0) action.accept((V) values[i]);
+        }
+    }
+
+    private void rehash() {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        allocate(oldKeys.length << 1);
+        for (int i = 0; i < oldKeys.length; i++) {
+            long key = oldKeys[i];
+            if (key == 0) continue;
+            int j = hash(key) & mask;
+            while (keys[j] != 0) j = (j + 1) & mask;
+            keys[j] = key;
+            values[j] = oldValues[i];
+        }
+    }
+}
@@ -0,0 +1,317 @@
+package cn.xiaofei.rudp;
+
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 信道的指标在某一时刻的快照，见{@link ChannelMetrics#snapshot()}。计数从信道开启起累计，可以用两次快照的差值计算速率
+ */
+public final class MetricsSnapshot {
+    private final long timeMillis;
+    private final long packetsSent;
+    private final long bytesSent;
+    private final long packetsReceived;
+    private final long bytesReceived;
+    private final long dataPacketsSent;
+    private final long retransmissions;
+    private final long duplicates;
+    private final long memoryDrops;
+    private final long fecRecovered;
+    private final long connectFailures;
+    private final long resets;
+    private final long messagesSent;
+    private final long messagesFailed;
+    private final long messagesExpired;
+    private final long messagesReceived;
+    private final long errors;
+    private final long receiveMemory;
+    private final HistogramSnapshot rtt;
+    private final HistogramSnapshot messageLatency;
+    private final List<PeerStats> peers;
+
+    MetricsSnapshot(ChannelMetrics m, long receiveMemory, List<PeerStats> peers) {
+        this.timeMillis = System.currentTimeMillis();
+        this.packetsSent = m.packetsSent.sum();
+        this.bytesSent = m.bytesSent.sum();
+        this.packetsReceived = m.packetsReceived.sum();
+        this.bytesReceived = m.bytesReceived.sum();
+        this.dataPacketsSent = m.dataPacketsSent.sum();
+        this.retransmissions = m.retransmissions.sum();
+        this.duplicates = m.duplicates.sum();
+        this.memoryDrops = m.memoryDrops.sum();
+        this.fecRecovered = m.fecRecovered.sum();
+        this.connectFailures = m.connectFailures.sum();
+        this.resets = m.resets.sum();
+        this.messagesSent = m.messagesSent.sum();
+        this.messagesFailed = m.messagesFailed.sum();
+        this.messagesExpired = m.messagesExpired.sum();
+        this.messagesReceived = m.messagesReceived.sum();
+        this.errors = m.errors.sum();
+        this.receiveMemory = receiveMemory;
+        this.rtt = m.rtt.snapshot();
+        this.messageLatency = m.messageLatency.snapshot();
+        this.peers = Collections.unmodifiableList(peers);
+    }
+
+    /**
+     * 快照的时间（毫秒）
+     */
+    public long getTimeMillis() {
+        return timeMillis;
+    }
+
+    /**
+     * 发出的UDP包数，包括控制包
+     */
+    public long getPacketsSent() {
+        return packetsSent;
+    }
+
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * 收到的UDP包数，包括控制包
+     */
+    public long getPacketsReceived() {
+        return packetsReceived;
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    /**
+     * 首次发送的数据包数（包括单包消息），不含重传
+     */
+    public long getDataPacketsSent() {
+        return dataPacketsSent;
+    }
+
+    /**
+     * 超时重传的数据包数
+     */
+    public long getRetransmissions() {
+        return retransmissions;
+    }
+
+    /**
+     * 重传数与首次发送的数据包数之比
+     */
+    public double getRetransmitRatio() {
+        return dataPacketsSent == 0 ? 0 : (double) retransmissions / dataPacketsSent;
+    }
+
+    /**
+     * 收到的重复数据包数，包括重复的单包消息
+     */
+    public long getDuplicates() {
+        return duplicates;
+    }
+
+    /**
+     * 超过接收内存预算而丢弃的数据包数
+     */
+    public long getMemoryDrops() {
+        return memoryDrops;
+    }
+
+    /**
+     * 由前向纠错恢复的数据包数
+     */
+    public long getFecRecovered() {
+        return fecRecovered;
+    }
+
+    /**
+     * 连接请求超过重试次数仍未得到回应的次数
+     */
+    public long getConnectFailures() {
+        return connectFailures;
+    }
+
+    /**
+     * 收到的会话重置数
+     */
+    public long getResets() {
+        return resets;
+    }
+
+    /**
+     * 发送完成的消息数
+     */
+    public long getMessagesSent() {
+        return messagesSent;
+    }
+
+    /**
+     * 发送失败的消息数，包括按可靠性策略放弃的
+     */
+    public long getMessagesFailed() {
+        return messagesFailed;
+    }
+
+    /**
+     * 按可靠性策略放弃的消息数
+     */
+    public long getMessagesExpired() {
+        return messagesExpired;
+    }
+
+    /**
+     * 交给监听器的消息数
+     */
+    public long getMessagesReceived() {
+        return messagesReceived;
+    }
+
+    /**
+     * 被捕获并打印的异常数
+     */
+    public long getErrors() {
+        return errors;
+    }
+
+    /**
+     * 接收端占用的内存（字节）
+     */
+    public long getReceiveMemory() {
+        return receiveMemory;
+    }
+
+    /**
+     * 往返时间的分布（微秒），只用没有重传过的包采样
+     */
+    public HistogramSnapshot getRtt() {
+        return rtt;
+    }
+
+    /**
+     * 消息从调用send到发送完成的时间分布（微秒），包括排队、握手和重传
+     */
+    public HistogramSnapshot getMessageLatency() {
+        return messageLatency;
+    }
+
+    /**
+     * 各对端的发送状态
+     */
+    public List<PeerStats> getPeers() {
+        return peers;
+    }
+
+    @Override
+    public String toString() {
+        return "MetricsSnapshot{" +
+                "packetsSent=" + packetsSent +
+                ", packetsReceived=" + packetsReceived +
+                ", retransmissions=" + retransmissions +
+                ", duplicates=" + duplicates +
+                ", memoryDrops=" + memoryDrops +
+                ", fecRecovered=" + fecRecovered +
+                ", connectFailures=" + connectFailures +
+                ", messagesSent=" + messagesSent +
+                ", messagesFailed=" + messagesFailed +
+                ", messagesReceived=" + messagesReceived +
+                ", errors=" + errors +
+                ", receiveMemory=" + receiveMemory +
+                ", rtt=" + rtt +
+                ", messageLatency=" + messageLatency +
+                ", peers=" + peers.size() +
+                '}';
+    }
+
+    /**
+     * 一个对端的发送状态。由事件循环维护，快照时不加锁读取，是近似值
+     */
+    public static final class PeerStats {
+        private final InetSocketAddress address;
+        private final boolean connected;
+        private final int congestionWindow;
+        private final int inFlight;
+        private final int receiveWindow;
+        private final long srttMicros;
+        private final int queuedMessages;
+        private final int segmentSize;
+
+        PeerStats(InetSocketAddress address, boolean connected, int congestionWindow, int inFlight, int receiveWindow,
+                  long srttMicros, int queuedMessages, int segmentSize) {
+            this.address = address;
+            this.connected = connected;
+            this.congestionWindow = congestionWindow;
+            this.inFlight = inFlight;
+            this.receiveWindow = receiveWindow;
+            this.srttMicros = srttMicros;
+            this.queuedMessages = queuedMessages;
+            this.segmentSize = segmentSize;
+        }
+
+        public InetSocketAddress getAddress() {
+            return address;
+        }
+
+        /**
+         * 会话是否已建立
+         */
+        public boolean isConnected() {
+            return connected;
+        }
+
+        /**
+         * 拥塞窗口（包数）
+         */
+        public int getCongestionWindow() {
+            return congestionWindow;
+        }
+
+        /**
+         * 在途的数据包数
+         */
+        public int getInFlight() {
+            return inFlight;
+        }
+
+        /**
+         * 接收方通告的窗口（包数），接收方没有通告时为Integer.MAX_VALUE
+         */
+        public int getReceiveWindow() {
+            return receiveWindow;
+        }
+
+        /**
+         * 平滑RTT（微秒），还没有样本时为-1
+         */
+        public long getSrttMicros() {
+            return srttMicros;
+        }
+
+        /**
+         * 还没有发完的消息数，包括等待握手的
+         */
+        public int getQueuedMessages() {
+            return queuedMessages;
+        }
+
+        /**
+         * 会话的分段大小，没有会话时为0
+         */
+        public int getSegmentSize() {
+            return segmentSize;
+        }
+
+        @Override
+        public String toString() {
+            return "PeerStats{" +
+                    "address=" + address +
+                    ", connected=" + connected +
+                    ", cwnd=" + congestionWindow +
+                    ", inFlight=" + inFlight +
+                    ", receiveWindow=" + receiveWindow +
+                    ", srttMicros=" + srttMicros +
+                    ", queued=" + queuedMessages +
+                    '}';
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package cn.xiaofei.rudp;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 在进程内模拟有损网络：对信道发出的数据报按概率丢弃、重复，加上固定延迟、抖动和额外的乱序延迟，并限制带宽。
+ * 不依赖tc/netem或真实的广域网，可以在一台机器上测试重传、窗口在1%~10%丢包下的表现。
+ * <p>随机数由种子决定：同一个种子、同样的发包顺序，得到同样的丢包和延迟序列。配合{@link VirtualClock}，延迟也不受机器负载影响。
+ * <p>只作用于发出的方向，两个方向都要模拟时给收发双方都设置。
+ * <pre>{@code
+ * NetworkImpairment impairment = new NetworkImpairment(42).setLoss(0.05).setDelay(20, 5, TimeUnit.MILLISECONDS);
+ * RDatagramChannel channel = RDatagramChannel.open(port, 1, impairment.wrap(DatagramTransport.UDP), Clock.SYSTEM);
+ * }</pre>
+ * 设置应在开始收发之前完成；统计可以随时读取。
+ */
+public final class NetworkImpairment {
+    private final long seed;
+    private Clock clock = Clock.SYSTEM;
+    private double loss = 0;
+    private double duplicate = 0;
+    private double reorder = 0;
+    private long reorderDelayNanos = 0;
+    private long delayNanos = 0;
+    private long jitterNanos = 0;
+    private long bandwidth = 0; //字节/秒，0为不限
+    private long queueBytes = Long.MAX_VALUE; //限速时排队的字节数上限，超过则丢弃
+
+    final LongAdder sent = new LongAdder();
+    final LongAdder dropped = new LongAdder();
+    final LongAdder duplicated = new LongAdder();
+    final LongAdder reordered = new LongAdder();
+    final LongAdder overflowed = new LongAdder();
+
+    /**
+     * @param seed 随机数种子，每个传输的随机数由种子、端口号和事件循环编号决定
+     */
+    public NetworkImpairment(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * 计算延迟使用的时钟，应与信道的时钟相同，默认为系统时钟
+     */
+    public NetworkImpairment setClock(Clock clock) {
+        this.clock = clock;
+        return this;
+    }
+
+    /**
+     * 丢包率，[0, 1]
+     */
+    public NetworkImpairment setLoss(double probability) {
+        this.loss = probability;
+        return this;
+    }
+
+    /**
+     * 重复的概率，重复的包有自己的抖动
+     */
+    public NetworkImpairment setDuplicate(double probability) {
+        this.duplicate = probability;
+        return this;
+    }
+
+    /**
+     * 乱序：按概率给包额外加上extraDelay，使它落在之后发出的包后面
+     */
+    public NetworkImpairment setReorder(double probability, long extraDelay, TimeUnit unit) {
+        this.reorder = probability;
+        this.reorderDelayNanos = unit.toNanos(extraDelay);
+        return this;
+    }
+
+    /**
+     * 单向延迟为delay加上[0, jitter)之间均匀分布的抖动。抖动大于发包间隔时同样会造成乱序
+     */
+    public NetworkImpairment setDelay(long delay, long jitter, TimeUnit unit) {
+        this.delayNanos = unit.toNanos(delay);
+        this.jitterNanos = unit.toNanos(jitter);
+        return this;
+    }
+
+    /**
+     * 限制带宽：包按发出的顺序以bytesPerSecond的速率逐个发出，排队超过queueBytes字节时丢弃新包（尾部丢弃），
+     * 与瓶颈链路上的路由器相同
+     *
+     * @param bytesPerSecond 带宽，0为不限
+     * @param queueBytes     排队的字节数上限
+     */
+    public NetworkImpairment setBandwidth(long bytesPerSecond, long queueBytes) {
+        this.bandwidth = Math.max(bytesPerSecond, 0);
+        this.queueBytes = Math.max(queueBytes, 0);
+        return this;
+    }
+
+    /**
+     * 包装一个传输工厂，打开的传输在发出时加上这里设置的损伤
+     */
+    public DatagramTransport.Factory wrap(DatagramTransport.Factory delegate) {
+        return (port, shard, reusePort) -> new ImpairedTransport(delegate.open(port, shard, reusePort), this,
+                seed * 31 * 31 + port * 31L + shard);
+    }
+
+    /**
+     * 交给传输的数据报数，包括被丢弃的
+     */
+    public long getSent() {
+        return sent.sum();
+    }
+
+    /**
+     * 按丢包率丢弃的数据报数
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public long getDuplicated() {
+        return duplicated.sum();
+    }
+
+    /**
+     * 加了乱序延迟的数据报数
+     */
+    public long getReordered() {
+        return reordered.sum();
+    }
+
+    /**
+     * 限速排队已满而丢弃的数据报数
+     */
+    public long getOverflowed() {
+        return overflowed.sum();
+    }
+
+    Clock clock() {
+        return clock;
+    }
+
+    double loss() {
+        return loss;
+    }
+
+    double duplicate() {
+        return duplicate;
+    }
+
+    double reorder() {
+        return reorder;
+    }
+
+    long reorderDelayNanos() {
+        return reorderDelayNanos;
+    }
+
+    long delayNanos() {
+        return delayNanos;
+    }
+
+    long jitterNanos() {
+        return jitterNanos;
+    }
+
+    long bandwidth() {
+        return bandwidth;
+    }
+
+    long queueBytes() {
+        return queueBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "NetworkImpairment{" +
+                "seed=" + seed +
+                ", loss=" + loss +
+                ", duplicate=" + duplicate +
+                ", reorder=" + reorder +
+                ", delayNanos=" + delayNanos +
+                ", jitterNanos=" + jitterNanos +
+                ", bandwidth=" + bandwidth +
+                ", sent=" + sent +
+                ", dropped=" + dropped +
+                ", duplicated=" + duplicated +
+                ", reordered=" + reordered +
+                ", overflowed=" + overflowed +
+                '}';
+    }
+}
@@ -0,0 +1,171 @@
+package cn.xiaofei.rudp;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * 待发送数据的来源。发送窗口推进时才按需读取，每次读取一个数据包的内容，因此不必把整个消息放在内存中。
+ * 偏移从小到大依次读取，每段只读一次，重传时使用已经生成的数据包。
+ * <p>非线程安全，只在发送所属的事件循环上读取。
+ */
+interface PacketSource {
+    /**
+     * 数据的总字节数
+     */
+    long length();
+
+    /**
+     * 读取offset处的length个字节
+     *
+     * @return 内容为position到limit之间的字节，只在下一次调用之前有效
+     */
+    ByteBuffer read(long offset, int length) throws IOException;
+
+    /**
+     * 能否从头重新读取。会话被重置时，能重新读取的消息在新的会话中重发，否则发送失败
+     */
+    boolean rewindable();
+
+    /**
+     * 发送结束（完成或失败）后释放资源。不关闭调用方传入的信道
+     */
+    void close();
+
+    static PacketSource of(ByteBuffer data) {
+        return new BufferSource(data);
+    }
+
+    static PacketSource of(FileChannel file) throws IOException {
+        return new FileSource(file, file.position(), file.size() - file.position());
+    }
+
+    static PacketSource of(ReadableByteChannel channel, long length) {
+        return new ChannelSource(channel, length);
+    }
+
+    /**
+     * 内存中的数据，直接切片，不复制
+     */
+    final class BufferSource implements PacketSource {
+        private final ByteBuffer data;
+        private final int start;
+        private final int end;
+
+        BufferSource(ByteBuffer data) {
+            this.data = data.duplicate();
+            this.start = data.position();
+            this.end = data.limit();
+        }
+
+        @Override
+        public long length() {
+            return end - start;
+        }
+
+        @Override
+        public ByteBuffer read(long offset, int length) {
+            int from = start + (int) offset;
+            data.limit(from + length).position(from);
+            return data;
+        }
+
+        @Override
+        public boolean rewindable() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * 文件，按区域做内存映射，一次映射{@link #REGION}字节，读完一个区域再映射下一个
+     */
+    final class FileSource implements PacketSource {
+        static final long REGION = 16L << 20;
+
+        private final FileChannel file;
+        private final long start;
+        private final long length;
+        private MappedByteBuffer region;
+        private long regionStart = -1;
+
+        FileSource(FileChannel file, long start, long length) {
+            this.file = file;
+            this.start = start;
+            this.length = length;
+        }
+
+        @Override
+        public long length() {
+            return length;
+        }
+
+        @Override
+        public ByteBuffer read(long offset, int length) throws IOException {
+            if (region == null || offset < regionStart || offset + length > regionStart + region.capacity()) {
+                regionStart = offset;
+                region = file.map(FileChannel.MapMode.READ_ONLY, start + offset, Math.min(REGION, this.length - offset));
+            }
+            int from = (int) (offset - regionStart);
+            region.limit(from + length).position(from);
+            return region;
+        }
+
+        @Override
+        public boolean rewindable() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+            region = null;
+        }
+    }
+
+    /**
+     * 任意可读信道，按顺序读取。信道应为阻塞模式，读取在事件循环线程上进行
+     */
+    final class ChannelSource implements PacketSource {
+        private final ReadableByteChannel channel;
+        private final long length;
+        private ByteBuffer buffer;
+
+        ChannelSource(ReadableByteChannel channel, long length) {
+            this.channel = channel;
+            this.length = length;
+        }
+
+        @Override
+        public long length() {
+            return length;
+        }
+
+        @Override
+        public ByteBuffer read(long offset, int length) throws IOException {
+            if (buffer == null || buffer.capacity() < length) buffer = ByteBuffer.allocate(length);
+            buffer.clear();
+            buffer.limit(length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) throw new EOFException("channel ended at " + (offset + buffer.position()) + " of " + this.length + " bytes");
+            }
+            buffer.flip();
+            return buffer;
+        }
+
+        @Override
+        public boolean rewindable() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+            buffer = null;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package cn.xiaofei.rudp;
+
+/**
+ * 按下标存放数据包的环形数组，下标为数据包在消息中的序列号（从0开始）。
+ * 用作发送窗口（已发出未确认的包）和接收窗口（已收到未交付的包），按下标存取为O(1)，不装箱。
+ * <p>只保存[{@link #base()}, {@link #end()})之间的包，中间可以有空缺。跨度超过容量时容量翻倍，
+ * 删除最前面的包时base前移，跳过空缺。
+ * <p>非线程安全，只在事件循环线程上使用。
+ */
+final class PacketWindow {
+    private RDatagram[] slots;
+    private int mask;
+    private int base = 0; //最前面的包的下标
+    private int end = 0; //最后面的包的下标+1
+    private int size = 0;
+
+    /**
+     * @param capacity 初始容量，向上取整为2的幂
+     */
+    PacketWindow(int capacity) {
+        int n = 16;
+        while (n < capacity) n <<= 1;
+        slots = new RDatagram[n];
+        mask = n - 1;
+    }
+
+    /**
+     * 最前面的包的下标，窗口为空时等于{@link #end()}
+     */
+    int base() {
+        return base;
+    }
+
+    /**
+     * 最后面的包的下标+1
+     */
+    int end() {
+        return end;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    RDatagram get(int index) {
+        if (index < base || index >= end) return null;
+        return slots[index & mask];
+    }
+
+    /**
+     * 放入下标为index的包，已有的包被替换
+     */
+    void put(int index, RDatagram rDatagram) {
+        if (index < 0) throw new IllegalArgumentException("index: " + index);
+        if (size == 0) {
+            base = index;
+            end = index + 1;
+        } else {
+            int from = Math.min(base, index);
+            int to = Math.max(end, index + 1);
+            if (to - from > slots.length) grow(to - from);
+            base = from;
+            end = to;
+        }
+        if (slots[index & mask] == null) size++;
+        slots[index & mask] = rDatagram;
+    }
+
+    /**
+     * 取出下标为index的包
+     *
+     * @return 没有则为null
+     */
+    RDatagram remove(int index) {
+        if (index < base || index >= end) return null;
+        RDatagram rDatagram = slots[index & mask];
+        if (rDatagram == null) return null;
+        slots[index & mask] = null;
+        if (--size == 0) {
+            base = end;
+        } else if (index == base) {
+            while (slots[base & mask] == null) base++;
+        } else if (index == end - 1) {
+            while (slots[(end - 1) & mask] == null) end--;
+        }
+        return rDatagram;
+    }
+
+    private void grow(int span) {
+        int n = slots.length;
+        while (n < span) n <<= 1;
+        RDatagram[] old = slots;
+        int oldMask = mask;
+        slots = new RDatagram[n];
+        mask = n - 1;
+        for (int i = base; i < end; i++) slots[i & mask] = old[i & oldMask];
+    }
+}
@@ -0,0 +1,77 @@
+package cn.xiaofei.rudp;
+
+/**
+ * 路径MTU探测，二分查找能够不分片到达对端的最大数据包内容长度。每个对端地址一个。
+ * <p>每次发出一个内容长度为{@link #size()}的探测包：收到回应则下限提高到该长度；
+ * 连续{@link #TRIES}次超时则认为过大，上限降低到该长度减一。上下限相遇时探测结束，结果为下限。
+ * <p>非线程安全，只由对端所属的事件循环访问。
+ */
+final class PathMtuProbe {
+    /**
+     * 同一长度的探测包最多发送的次数，全部超时才认为该长度过大，避免把偶然的丢包当成MTU限制
+     */
+    static final int TRIES = 2;
+
+    private int low; //已确认能到达的长度
+    private int high; //可能能到达的最大长度
+    private int size; //当前探测的长度
+    private int tries; //当前长度已发送的次数
+
+    PathMtuProbe(int low, int high) {
+        this.low = low;
+        this.high = Math.max(low, high);
+        next();
+    }
+
+    boolean done() {
+        return low >= high;
+    }
+
+    /**
+     * 下一个探测包的内容长度
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * 目前已确认能到达的最大长度
+     */
+    int low() {
+        return low;
+    }
+
+    /**
+     * 发出一个探测包
+     */
+    void onSend() {
+        tries++;
+    }
+
+    int tries() {
+        return tries;
+    }
+
+    /**
+     * 收到长度为size的探测包的回应
+     */
+    void onAck(int size) {
+        if (size <= low || size > high) return;
+        low = size;
+        next();
+    }
+
+    /**
+     * 当前探测包超时未回应
+     */
+    void onTimeout() {
+        if (tries < TRIES) return;
+        high = size - 1;
+        next();
+    }
+
+    private void next() {
+        tries = 0;
+        size = low + (high - low + 1) / 2;
+    }
+}
@@ -2,41 +2,129 @@ package cn.xiaofei.rudp;
 
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 public class RDatagram {
     public final ByteBuffer data;
     public InetSocketAddress address;
     int sendTimes = 0; //发送次数
+    long lastSendTime = 0; //上次发送的时间(ns)
+
+    private static final AtomicIntegerFieldUpdater<RDatagram> RELEASED = AtomicIntegerFieldUpdater.newUpdater(RDatagram.class, "released");
+    private volatile int released = 0; //是否已归还缓冲区
+    private final BufferPool pool; //data所属的缓冲池，为null则不是池化的
 
     /**
      * 包头字节数
      */
-    static final int HEADER_LENGTH = 24;
+    static final int HEADER_LENGTH = Header.LENGTH;
 
     /**
-     * 数据包
+     * 数据包，发送id为消息id，接收id为接收方的会话id，序列号为包在消息中的下标（从0开始）。
+     * 消息的最后一个包带{@link #FLAG_LAST}，接收方由此得知小包总数；有序消息的包都带{@link #FLAG_ORDERED}
      */
     static final byte TYPE_DATA = 0x00;
 
     /**
-     * 确认包，当接收方收到数据包、确认包时会发送此消息。内容为：
-     * 一个整数（4字节），表示收到的包的字节数。
+     * 保活包，发送方的会话空闲时定期发送，发送id为发送方的会话id，接收id为接收方的会话id，内容为空。
+     * 接收方不回应，只刷新会话的活跃时间；会话不存在则回复{@link #TYPE_RESET}
+     */
+    static final byte TYPE_KEEPALIVE = 0x11;
+
+    /**
+     * 确认包，接收方收到若干个数据包后发送，发送id为消息id，接收id为接收方的会话id，序列号为触发确认的数据包的序列号。内容为：
+     * 累计确认号（4字节，此序列号之前的数据包都已收到），SACK区间数（2字节），
+     * 之后每个区间为起始序列号（4字节，包含）和结束序列号（4字节，不包含），表示累计确认号之后已收到的数据包。
+     * 最后为接收窗口（4字节），即按接收方的内存预算还能接收的数据包数
      */
     static final byte TYPE_ACK = 0x22;
 
     /**
-     * 连接请求，指的是询问对方是否能接收接下来要传送的数据。内容为：
-     * 一个整数（4字节），表示将要发送的小包总数（不包含连接请求）
+     * 会话重置，接收方收到不存在的会话（已过期或接收方重启过）的包时回复，接收id为该会话id。
+     * 发送方收到后丢弃会话，重新握手
+     */
+    static final byte TYPE_RESET = 0x33;
+
+    /**
+     * 连接请求，即建立会话，发送id为发送方的会话id。内容为提议的分段大小（4字节，即每个数据包的内容字节数），
+     * 以及前向纠错每块的数据包数（1字节，0为不开启，可以没有），能否解压（1字节，可以没有）。
+     * 一个地址只需握手一次，之后的消息都在这个会话中发送，直到会话空闲超时或被重置
      */
     static final byte TYPE_CONNECT_REQUEST = 0x44;
 
     /**
-     * 连接回应，发送方收到则表示接收方做好了接收准备。如果发送方超时仍未收到，则连接失败。内容为空
+     * 连接回应，发送方收到则表示会话已建立。如果发送方超时仍未收到，则连接失败，等待握手的消息都发送失败。
+     * 发送id为发送方的会话id，接收id为接收方分配的会话id。内容为：
+     * 接收方接受的分段大小（4字节），不超过提议的大小；接受的前向纠错每块的数据包数（1字节，0为不开启）；是否接受压缩的消息（1字节）；接收窗口（4字节）
      */
     static final byte TYPE_CONNECT_RESPONSE = 0x55;
 
     /**
-     * 新建一个数据包，数据不能超过1024字节
+     * 路径MTU探测包，发送id为探测id，序列号为内容字节数，内容全为0。接收方完整收到（没有被截断）则回应
+     */
+    static final byte TYPE_PROBE = 0x66;
+
+    /**
+     * 探测回应，发送id和序列号与探测包相同，内容为空
+     */
+    static final byte TYPE_PROBE_ACK = 0x77;
+
+    /**
+     * 单包消息，内容不超过一个分段的消息不建立会话，直接在第一个包中携带数据。
+     * 发送id为发送方随机分配的消息id，接收id为0，序列号为0。接收方按（地址，发送id）去重，回复{@link #TYPE_SINGLE_ACK}
+     */
+    static final byte TYPE_SINGLE = (byte) 0x88;
+
+    /**
+     * 单包消息的确认，发送id与单包消息相同，内容为空。重复的单包消息也回复
+     */
+    static final byte TYPE_SINGLE_ACK = (byte) 0x99;
+
+    /**
+     * 放弃消息，发送方按可靠性策略放弃一个已发出数据包的消息时发送，发送id为消息id，接收id为接收方的会话id，内容为空。
+     * 接收方丢弃该消息已收到的部分。不需要回应，丢失时接收方在消息空闲一段时间后同样会丢弃
+     */
+    static final byte TYPE_FORWARD = (byte) 0xAA;
+
+    /**
+     * 前向纠错的校验包，跟在块内最后一个数据包之后发送，不重传，见{@link FecBlock}。发送id为消息id，接收id为接收方的会话id，
+     * 序列号为块内第一个数据包的下标，标志位低7位为块内的数据包数，最高位表示块内最后一个包是消息的最后一个包
+     */
+    static final byte TYPE_PARITY = (byte) 0xBB;
+
+    /**
+     * 拒绝消息，接收方不是流式接收、而消息超过其内存预算时发送，发送id为消息id，接收id为接收方的会话id，内容为空。
+     * 发送方以失败结束该消息。不需要回应，丢失时发送方重传的包会再次得到拒绝
+     */
+    static final byte TYPE_REJECT = (byte) 0xCC;
+
+    /**
+     * 标志位：消息的最后一个数据包
+     */
+    static final byte FLAG_LAST = 0x01;
+
+    /**
+     * 标志位：有序消息的数据包，见{@link Reliability#ordered()}
+     */
+    static final byte FLAG_ORDERED = 0x02;
+
+    /**
+     * 标志位：压缩的消息的数据包，接收方整合后解压，见{@link Compression}
+     */
+    static final byte FLAG_COMPRESSED = 0x04;
+
+    /**
+     * 标志位：请求的数据包，消息开头8字节为请求id，见{@link RDatagramChannel#request}
+     */
+    static final byte FLAG_REQUEST = 0x08;
+
+    /**
+     * 标志位：回复的数据包，消息开头8字节为所回复的请求的id
+     */
+    static final byte FLAG_RESPONSE = 0x10;
+
+    /**
+     * 新建一个数据包，数据不能超过分段大小
      *
      * @param sendId    发送id
      * @param receiveId 接收id
@@ -45,67 +133,146 @@ public class RDatagram {
      * @param d         数据
      */
     RDatagram(long sendId, long receiveId, int seq, byte type, byte[] d) {
-        int len = HEADER_LENGTH;
-        if (d != null) len += d.length;
+        this(sendId, receiveId, seq, type, d == null ? null : ByteBuffer.wrap(d));
+    }
+
+    /**
+     * 新建一个数据包，内容为d中剩余的字节，不改变d的position
+     */
+    RDatagram(long sendId, long receiveId, int seq, byte type, ByteBuffer d) {
+        this(sendId, receiveId, seq, type, d == null ? 0 : d.remaining());
+        if (d != null) {
+            data.position(HEADER_LENGTH);
+            data.put(d.duplicate());
+            data.clear();
+        }
+    }
+
+    /**
+     * 新建一个内容长度为dataLength的数据包，内容由调用方通过put方法写入
+     */
+    RDatagram(long sendId, long receiveId, int seq, byte type, int dataLength) {
+        pool = null;
+        int len = HEADER_LENGTH + dataLength;
         data = ByteBuffer.allocate(len);
-        byte[] bytes = data.array();
-        //byte[0-3]为序列号。初始序列号是非0的随机整数，分配给连接包。
-        System.arraycopy(Util.intToBytes(seq), 0, bytes, 0, 4);
-        //byte[4-5]为数据字节数，包含头
-        System.arraycopy(Util.shortToBytes((short) len), 0, bytes, 4, 2);
-        //byte[6]空置
-        //byte[7]为数据类型
-        bytes[7] = type;
-        //byte[8-15]为发送id
-        System.arraycopy(Util.longToBytes(sendId), 0, bytes, 8, 8);
-        //byte[16-23]为接收id
-        System.arraycopy(Util.longToBytes(receiveId), 0, bytes, 16, 8);
-        //之后是内容
-        if (d != null)
-            System.arraycopy(d, 0, bytes, HEADER_LENGTH, d.length);
+        Header.write(data, seq, len, type, sendId, receiveId);
     }
 
     /**
      * 根据接收到的数据新建
      */
     RDatagram(ByteBuffer data) {
+        this(data, null);
+    }
+
+    /**
+     * 根据接收到的数据新建，data取自缓冲池，由持有者用完后调用{@link #release()}归还
+     */
+    RDatagram(ByteBuffer data, BufferPool pool) {
         this.data = data;
         this.data.flip();
+        this.pool = pool;
+    }
+
+    /**
+     * 把缓冲区归还缓冲池，之后不能再访问data。数据包同一时间只有一个持有者（接收窗口、转交队列或回调），
+     * 由它负责归还；重复调用只归还一次
+     */
+    void release() {
+        if (RELEASED.compareAndSet(this, 0, 1) && pool != null) pool.release(data);
     }
 
     int getSeq() {
-        byte[] bytes = data.array();
-        return Util.bytesToInt(Util.subArray(bytes, 0, 4));
+        return Header.seq(data);
     }
 
     byte getType() {
-        return data.array()[7];
+        return Header.type(data);
     }
 
-    byte[] getData() {
-        if (data.array().length <= 24) {
-            return new byte[0];
-        }
-        return Util.subArray(data.array(), 24, getTotalLength());
+    byte getFlags() {
+        return Header.flags(data);
+    }
+
+    void setFlags(byte flags) {
+        Header.setFlags(data, flags);
+    }
+
+    boolean hasFlag(byte flag) {
+        return (getFlags() & flag) != 0;
     }
 
     long getSendId() {
-        byte[] bytes = data.array();
-        return Util.bytesToLong(Util.subArray(bytes, 8, 16));
+        return Header.sendId(data);
     }
 
     long getReceiveId() {
-        byte[] bytes = data.array();
-        return Util.bytesToLong(Util.subArray(bytes, 16, 24));
+        return Header.receiveId(data);
     }
 
     void setReceiveId(long receiveId) {
-        byte[] bytes = Util.longToBytes(receiveId);
-        System.arraycopy(bytes, 0, data.array(), 16, 8);
+        Header.setReceiveId(data, receiveId);
     }
 
     int getTotalLength() {
-        byte[] bytes = data.array();
-        return Util.bytesToShort(Util.subArray(bytes, 4, 6));
+        return Header.totalLength(data);
+    }
+
+    /**
+     * 是否被截断，即实际收到的字节数少于包头中的长度。包比接收缓冲区大时发生
+     */
+    boolean isTruncated() {
+        return data.limit() < getTotalLength();
+    }
+
+    /**
+     * 内容的字节数，不超过实际收到的字节数
+     */
+    int getDataLength() {
+        return Math.max(0, Math.min(getTotalLength(), data.limit()) - HEADER_LENGTH);
+    }
+
+    byte[] getData() {
+        byte[] bytes = new byte[getDataLength()];
+        getData(bytes, 0);
+        return bytes;
+    }
+
+    /**
+     * 把内容复制到dst的offset处
+     */
+    void getData(byte[] dst, int offset) {
+        int len = getDataLength();
+        if (data.hasArray()) {
+            System.arraycopy(data.array(), data.arrayOffset() + HEADER_LENGTH, dst, offset, len);
+        } else {
+            ByteBuffer src = data.duplicate();
+            src.limit(HEADER_LENGTH + len).position(HEADER_LENGTH);
+            src.get(dst, offset, len);
+        }
+    }
+
+    /**
+     * 内容的只读视图，与data共享内存，不复制
+     */
+    ByteBuffer getDataView() {
+        ByteBuffer view = data.asReadOnlyBuffer();
+        view.limit(HEADER_LENGTH + getDataLength()).position(HEADER_LENGTH);
+        return view.slice();
+    }
+
+    /**
+     * 读取内容中index处的整数，index从内容开始算
+     */
+    int getDataInt(int index) {
+        return data.getInt(HEADER_LENGTH + index);
+    }
+
+    short getDataShort(int index) {
+        return data.getShort(HEADER_LENGTH + index);
+    }
+
+    void putDataInt(int index, int num) {
+        data.putInt(HEADER_LENGTH + index, num);
     }
 }
@@ -1,461 +1,2325 @@
 package cn.xiaofei.rudp;
 
+import javax.management.ObjectName;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.InetSocketAddress;
+import java.net.SocketOption;
 import java.nio.ByteBuffer;
-import java.nio.channels.DatagramChannel;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * <p>R即Reliable。RDatagramChannel即可靠的UDP信道。
  * <p>与TCP不同的是：
  * 1、RUDP以按小包分配序列号，
- * 2、RUDP不建立全双工信道，因此只需要两次握手。
- * 3、RUDP没有慢启动，没有拥塞控制。
+ * 2、RUDP不建立全双工信道，因此只需要两次握手。握手按对端地址建立一个会话，之后发往该地址的消息都在会话中发送，按消息id区分，不再握手，
+ * 会话空闲时定期保活，空闲超时后过期，见{@link #setKeepAlive(long)}和{@link #setSessionIdleTimeout(long)}。
+ * 3、RUDP按对端地址维护拥塞窗口（慢启动 + AIMD/CUBIC），可以按信道关闭，见{@link #setCongestionControl(CongestionControl)}。
  * <p>这里只提供可靠性，不提供安全性。
  * <p>想要更安全（主要是防止DDOS攻击），但是更低效的，请在Github搜索“RSUDP”：reliable safer user datagram protocol.
+ * <p>线程模型：每个信道（见{@link #open(int, int)}）有一个事件循环线程，收包、协议处理和定时任务都在这个线程上进行，
+ * 协议状态只由所属的事件循环访问，不需要加锁。接收端状态属于收到连接请求的信道，发送端状态属于按对端地址选定的信道。
+ * 用户回调（监听器、发送任务的回调）交给一个回调线程按顺序执行，队列满时事件循环等待，见{@link #CALLBACK_QUEUE_SIZE}。
  *
  * @author Xiao Fei, jdfohewk@gmail.com
  * @version 2021.1
  */
 public class RDatagramChannel {
-    private DatagramChannel channel;
+    /**
+     * 绑定在同一端口上的若干个信道，各自有事件循环和接收端状态。只有一个时即普通的单信道
+     */
+    private final Shard[] shards;
+
+    /**
+     * 发送端的对端信息，key为对端地址
+     */
+    private final Map<InetSocketAddress, Peer> peers;
+
+    /**
+     * 接收缓冲池，每个缓冲区可以容纳一个分段大小的数据包。修改分段大小时替换
+     */
+    private volatile BufferPool receiveBufferPool;
+
+    /**
+     * 接收监听器
+     */
+    private ReceiveListener receiveListener;
+
+    /**
+     * 流式接收监听器，设置后不再整合整个消息
+     */
+    private StreamReceiveListener streamReceiveListener;
+
+    /**
+     * 请求处理器，见{@link #setRequestHandler(RequestHandler)}
+     */
+    private volatile RequestHandler requestHandler;
+
+    /**
+     * 等待回复的请求，key为请求id
+     */
+    private final Map<Long, PendingRequest> requests = new ConcurrentHashMap<>();
+
+    private final AtomicLong nextRequestId = new AtomicLong();
+
+    /**
+     * 执行用户回调，单线程，有界队列。设置了回调执行器时只用于没有设置之前提交的回调
+     */
+    private final ThreadPoolExecutor callbackTask;
+
+    /**
+     * 用户设置的回调执行器，见{@link #setCallbackExecutor(Executor)}，为null则使用callbackTask
+     */
+    private volatile SerialExecutor callbackExecutor;
+
+    private volatile boolean orderedDelivery = false; //同一地址的消息是否逐个按收齐的顺序交付
+
+    private volatile boolean closed = false;
+
+    private final int port;
+
+    /**
+     * 计时用的时钟，见{@link #open(int, int, DatagramTransport.Factory, Clock)}
+     */
+    private final Clock clock;
+
+    /**
+     * 指标，见{@link #getMetrics()}
+     */
+    private final ChannelMetrics metrics = new ChannelMetrics(this::getReceiveMemory, this::peerStats);
+
+    /**
+     * 已注册的MBean名称，没有注册则为null
+     */
+    private volatile ObjectName mBeanName;
+
+    private int retryTime = 15; //重试次数
+    private long retryIntervalMillis = 200; //重试时间间隔的上限，毫秒
+    private long minRetryIntervalMillis = 10; //重试时间间隔的下限，毫秒
+    private CongestionControl congestionControl = CongestionControl.CUBIC; //拥塞控制算法
+    private int maxSendWindow = 1024; //每次传输最多同时在途的数据包数
+    private int ackEvery = 8; //每收到多少个包至少确认一次
+    private long ackDelayMillis = 5; //延迟确认的最长时间，毫秒
+    private long keepAliveMillis = 15000; //会话空闲时发送保活包的间隔，毫秒
+    private long sessionIdleTimeoutMillis = 60000; //会话空闲多久后过期，毫秒
+    private volatile int segmentSize = DEFAULT_SEGMENT_SIZE; //分段大小，即每个数据包的内容字节数
+    private volatile boolean pathMtuDiscovery = false; //是否探测路径MTU
+    private volatile int fec = 0; //前向纠错每块的数据包数，0为关闭
+    private volatile int compressionThreshold = -1; //不小于这个字节数的消息压缩后发送，-1为关闭
+    private volatile long receiveMemoryLimit = Long.MAX_VALUE; //接收端所有会话最多占用的内存，字节，默认不限
+    private volatile long peerReceiveMemoryLimit = Long.MAX_VALUE; //接收端每个会话最多占用的内存，字节，默认不限
+    private final AtomicLong receiveMemory = new AtomicLong(); //接收端已收到、监听器尚未处理完的数据字节数
+    private volatile boolean pacing = true; //是否把拥塞窗口均匀分布在一个RTT内发出
+    private volatile TokenBucket bandwidthLimit; //整个信道的发送带宽限制，null为不限
+    private volatile long peerBandwidthLimit = 0; //每个对端地址的发送带宽限制，字节/秒，0为不限
+    private volatile int interactivePriority = Integer.MAX_VALUE; //不小于这个优先级的传输不受发送节奏和带宽限制
+
+    /**
+     * 默认分段大小，也是开启路径MTU探测时的初始大小
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 1024;
+    /**
+     * 最小分段大小，须能容纳一个带满SACK区间的ACK
+     */
+    public static final int MIN_SEGMENT_SIZE = 256;
+    /**
+     * 最大分段大小，受UDP最大载荷（65507字节）限制
+     */
+    public static final int MAX_SEGMENT_SIZE = 65507 - RDatagram.HEADER_LENGTH;
+    /**
+     * 不是流式接收时能接收的最大消息字节数，整个消息整合成一个数组。更大的消息被拒绝，需要{@link StreamReceiveListener}
+     */
+    public static final int MAX_MESSAGE_LENGTH = Integer.MAX_VALUE - 8;
+    /**
+     * 回调队列的容量。回调跟不上时事件循环等待队列腾出空间，收包随之变慢，由重传恢复
+     */
+    public static final int CALLBACK_QUEUE_SIZE = 1024;
+    /**
+     * 每个事件循环转交队列的容量，用于转交由其他信道收到的、属于本循环的包，满了则丢弃
+     */
+    static final int INBOX_SIZE = 4096;
+    /**
+     * 每个事件循环最多记录的单包消息数。超过时淘汰最早的记录，被淘汰的消息如果还有重复包到达会再次交给监听器
+     */
+    static final int SINGLE_DEDUPE_SIZE = 1 << 16;
+    /**
+     * 发送节奏允许积累的最长时间(ns)，即空闲之后最多一次发出这么久的包。不小于时间轮的两个刻度，定时器稍晚触发也不损失速率
+     */
+    static final long PACING_QUANTUM = TimeUnit.MILLISECONDS.toNanos(2);
+    /**
+     * 带宽限制允许的突发，按速率折合的毫秒数
+     */
+    static final long BANDWIDTH_BURST_MILLIS = 10;
+    /**
+     * 关闭时等待每个事件循环退出的最长时间，毫秒
+     */
+    static final long CLOSE_TIMEOUT_MILLIS = 1000;
+
+    private RDatagramChannel(int port, int shardCount, DatagramTransport.Factory transports, Clock clock) {
+        if (shardCount > 1 && UdpTransport.reusePortOption() == null) shardCount = 1;
+        this.port = port;
+        this.clock = clock;
+        shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            DatagramTransport transport = null;
+            try {
+                transport = transports.open(port, i, shardCount > 1);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            shards[i] = new Shard(i, transport, clock);
+            if (clock instanceof VirtualClock) ((VirtualClock) clock).addListener(shards[i].onTick);
+        }
+        peers = new ConcurrentHashMap<>();
+        receiveBufferPool = new BufferPool(RDatagram.HEADER_LENGTH + segmentSize, 4096); //每个包最大为头加一个分段
+        callbackTask = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(CALLBACK_QUEUE_SIZE),
+                r -> new Thread(r, "rudp-callback-" + port), RDatagramChannel::waitForSpace);
+        for (Shard shard : shards) {
+            shard.drain = () -> drain(shard);
+            shard.thread = new Thread(() -> loop(shard), "rudp-loop-" + port + "-" + shard.index);
+            shard.thread.start();
+        }
+    }
+
+    /**
+     * 在指定端口开启RUDP传输通道
+     *
+     * @param port 本地端口号
+     */
+    public static RDatagramChannel open(int port) {
+        return new RDatagramChannel(port, 1, DatagramTransport.UDP, Clock.SYSTEM);
+    }
+
+    /**
+     * 在指定端口开启RUDP传输通道，用SO_REUSEPORT在同一端口上绑定shards个信道，每个信道有自己的事件循环线程，
+     * 以及自己的一份接收端状态（连接、接收信息、接收窗口）。
+     * 内核按（源地址，目的地址）的四元组把收到的包分给其中一个信道，因此同一个发送方的包总是由同一个信道接收，各信道之间互不加锁，
+     * 接收可以分散到多个核上。发往某个对端的包从按其地址选定的信道发出。
+     * <p>需要JDK 9及以上和支持SO_REUSEPORT的系统（如Linux 3.9及以上），不支持时只绑定一个信道。
+     *
+     * @param port   本地端口号
+     * @param shards 信道个数，通常不超过CPU核数
+     */
+    public static RDatagramChannel open(int port, int shards) {
+        return new RDatagramChannel(port, Math.max(shards, 1), DatagramTransport.UDP, Clock.SYSTEM);
+    }
+
+    /**
+     * 用指定的传输和时钟开启RUDP传输通道，其余同{@link #open(int, int)}。用于测试，如：
+     * 用{@link NetworkImpairment#wrap(DatagramTransport.Factory)}模拟丢包、乱序、延迟和限速；
+     * 用{@link VirtualClock}由测试推进时间，事件循环不再按真实时间等待定时任务。
+     *
+     * @param transports 为每个事件循环打开传输，通常为{@link DatagramTransport#UDP}或它的包装
+     * @param clock      计时用的时钟，通常为{@link Clock#SYSTEM}
+     */
+    public static RDatagramChannel open(int port, int shards, DatagramTransport.Factory transports, Clock clock) {
+        return new RDatagramChannel(port, Math.max(shards, 1), transports, clock);
+    }
+
+    /**
+     * 回调队列已满，等待腾出空间，保证回调的顺序。信道关闭之后回调线程不再接收任务，
+     * 事件循环退出时结束剩下的发送产生的回调在当前线程上执行
+     */
+    private static void waitForSpace(Runnable task, ThreadPoolExecutor executor) {
+        if (!executor.isShutdown()) {
+            try {
+                executor.getQueue().put(task);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (!executor.isShutdown() || !executor.remove(task)) return; //等待期间关闭了，任务可能不会再被取出
+        }
+        try {
+            task.run();
+        } catch (Throwable e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 发往某个地址的包所属的信道
+     */
+    private Shard shardFor(InetSocketAddress address) {
+        return shards[(address.hashCode() & Integer.MAX_VALUE) % shards.length];
+    }
+
+    /**
+     * 关闭信道：关闭传输并等待事件循环退出。事件循环退出时让尚未完成的发送以失败结束（失败回调照常执行），
+     * 等待回复的请求以{@link ClosedChannelException}异常完成。关闭之后的发送和请求立即失败
+     */
+    public void close() {
+        if (closed) return;
+        closed = true;
+        for (Shard shard : shards) {
+            if (clock instanceof VirtualClock) ((VirtualClock) clock).removeListener(shard.onTick);
+            if (shard.transport == null) continue;
+            shard.transport.wakeup();
+            try {
+                shard.transport.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        for (Shard shard : shards) {
+            if (shard.thread == null || shard.thread == Thread.currentThread()) continue;
+            try {
+                shard.thread.join(CLOSE_TIMEOUT_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            if (shard.thread.isAlive()) {
+                //事件循环被阻塞（如回调队列已满而监听器很慢），由它退出时自己结束剩下的发送
+                new IllegalStateException(shard.thread.getName() + " did not exit within " + CLOSE_TIMEOUT_MILLIS + "ms").printStackTrace();
+                metrics.errors.increment();
+            } else {
+                terminate(shard); //打开失败的信道没有运行事件循环
+            }
+        }
+        for (Map.Entry<Long, PendingRequest> entry : requests.entrySet()) {
+            if (requests.remove(entry.getKey(), entry.getValue()))
+                entry.getValue().future.completeExceptionally(new ClosedChannelException());
+        }
+        callbackTask.shutdown();
+        unregisterMBean();
+    }
+
+    /**
+     * 信道关闭后事件循环的最后一步：执行剩下的任务（其中提交的发送随即失败），让属于这个循环的对端上的发送失败。
+     * 之后提交的任务由提交的线程执行，见{@link Shard#execute(Runnable)}。只在事件循环线程上、或确认它已经退出之后调用
+     */
+    private void terminate(Shard shard) {
+        if (shard.terminated) return;
+        runTasks(shard);
+        for (Peer peer : peers.values()) {
+            if (peer.loop != shard) continue;
+            List<Send> sends = new ArrayList<>(peer.pending);
+            peer.pending.clear();
+            peer.messages.forEachValue(sends::add);
+            peer.singles.forEachValue(sends::add);
+            for (Send send : sends) {
+                if (!send.finished) fail(send);
+            }
+        }
+        shard.terminated = true;
+        drain(shard); //设置terminated之前提交的任务
+    }
+
+    /**
+     * 事件循环结束后执行提交的任务。同一时间只有一个线程执行，其他线程提交后直接返回，由正在执行的线程接着执行，
+     * 不阻塞提交的线程（如回调线程）
+     */
+    private void drain(Shard shard) {
+        while (shard.hasTasks() && shard.draining.compareAndSet(false, true)) {
+            try {
+                runTasks(shard);
+            } finally {
+                shard.draining.set(false);
+            }
+        }
+    }
+
+    /**
+     * 信道的指标：收发计数、重传、RTT和消息延迟的分布等，可以随时拉取快照
+     */
+    public ChannelMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * 把指标注册到平台MBeanServer，名称为cn.xiaofei.rudp:type=RDatagramChannel,port=端口号，关闭信道时注销。
+     * 同一端口只能注册一次
+     */
+    public RDatagramChannel registerMBean() {
+        if (mBeanName != null) return this;
+        try {
+            ObjectName name = new ObjectName("cn.xiaofei.rudp:type=RDatagramChannel,port=" + port);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, name);
+            mBeanName = name;
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return this;
+    }
+
+    private void unregisterMBean() {
+        ObjectName name = mBeanName;
+        if (name == null) return;
+        mBeanName = null;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 各对端的发送状态。这些字段由事件循环维护，这里不加锁读取，得到的是近似值：拥塞窗口、在途包数和平滑RTT为volatile，
+     * 其余字段可能稍旧，各字段之间也不一定一致
+     */
+    private List<MetricsSnapshot.PeerStats> peerStats() {
+        List<MetricsSnapshot.PeerStats> stats = new ArrayList<>(peers.size());
+        for (Peer peer : peers.values()) {
+            long srtt = peer.rtt.srtt();
+            stats.add(new MetricsSnapshot.PeerStats(peer.address, peer.sessionState == Peer.OPEN, peer.window.size(),
+                    peer.window.inFlight(), peer.receiveWindow, srtt < 0 ? -1 : TimeUnit.NANOSECONDS.toMicros(srtt),
+                    peer.messages.size() + peer.singles.size() + peer.pending.size(), peer.sessionState == Peer.OPEN ? peer.sessionSegmentSize : 0));
+        }
+        return stats;
+    }
+
+    /**
+     * 接收缓冲池，可以查看其使用情况
+     */
+    public BufferPool getReceiveBufferPool() {
+        return receiveBufferPool;
+    }
+
+    /**
+     * 设置分段大小，即每个数据包的内容字节数，默认1024，范围为[{@value #MIN_SEGMENT_SIZE}, {@value #MAX_SEGMENT_SIZE}]。
+     * 发送时向接收方提议这个大小，接收方接受的不超过它自己的分段大小；接收时也只能收下不超过这个大小的数据包。
+     * 因此收发双方都需要设置。例如MTU为9000的网络可以设为 9000 - 20(IP) - 8(UDP) - 24(RUDP) = 8948。
+     * 不超过一个分段的消息作为单包消息发送，不建立会话，见{@link #send(ByteBuffer, InetSocketAddress)}；接收缓冲区总能容纳默认大小的单包消息。
+     * <p>应在开始收发之前设置，修改时会替换接收缓冲池。
+     */
+    public RDatagramChannel setSegmentSize(int segmentSize) {
+        if (segmentSize < MIN_SEGMENT_SIZE || segmentSize > MAX_SEGMENT_SIZE || segmentSize == this.segmentSize) return this;
+        this.segmentSize = segmentSize;
+        receiveBufferPool = new BufferPool(RDatagram.HEADER_LENGTH + Math.max(segmentSize, DEFAULT_SEGMENT_SIZE), receiveBufferPool.getMaxPooled()); //至少能接收默认大小的单包消息
+        return this;
+    }
+
+    /**
+     * 开启或关闭路径MTU探测，默认关闭。开启后，对每个新的对端地址从{@value #DEFAULT_SEGMENT_SIZE}字节开始，
+     * 在不超过分段大小的范围内二分探测能够到达的最大数据包，之后发往该地址的数据按探测结果分段，探测结果一直保留。
+     * 同时尝试给信道设置禁止分片（需要JDK 19及以上），不支持时探测包可能被分片后到达，探测结果偏大但仍然可用。
+     * <p>分段大小不超过{@value #DEFAULT_SEGMENT_SIZE}时没有可探测的范围。
+     */
+    public RDatagramChannel setPathMtuDiscovery(boolean pathMtuDiscovery) {
+        this.pathMtuDiscovery = pathMtuDiscovery;
+        if (pathMtuDiscovery) setDontFragment();
+        return this;
+    }
+
+    /**
+     * 开启XOR前向纠错，默认关闭。开启后，消息的数据包每blockPackets个为一块，块内最后一个包之后紧跟一个校验包，
+     * 接收方块内只丢了一个包时直接用校验包恢复，不用等重传超时。代价是多发约1/blockPackets的数据，
+     * 并且为了让校验包不超过分段大小，数据包的内容少2字节。
+     * <p>在握手时协商，只影响之后建立的会话，因此应在开始发送之前设置。接收方不需要设置。
+     *
+     * @param blockPackets 每块的数据包数，范围为[1, {@value FecBlock#MAX_PACKETS}]，0为关闭。丢包率越高应越小
+     */
+    public RDatagramChannel setFec(int blockPackets) {
+        if (blockPackets < 0 || blockPackets > FecBlock.MAX_PACKETS) return this;
+        this.fec = blockPackets;
+        return this;
+    }
+
+    /**
+     * 开启或关闭消息压缩，默认关闭。开启后，不小于minBytes字节的内存中的消息（{@link #send(ByteBuffer, InetSocketAddress)}）
+     * 在调用线程上用Deflater压缩之后再分段发送，接收方整合之后解压，流式接收时边收边解压；压缩后不比原来小则照常发送。
+     * 文件和信道不压缩。压缩的消息总是在会话中发送，握手时确认接收方支持，不支持则发送原数据。
+     * 压缩率见{@link SendTask#getCompressionRatio()}。
+     *
+     * @param minBytes 压缩的最小消息字节数，小消息压缩的收益不抵开销
+     */
+    public RDatagramChannel setCompression(boolean enabled, int minBytes) {
+        this.compressionThreshold = enabled ? Math.max(minBytes, 0) : -1;
+        return this;
+    }
+
+    /**
+     * 设置IP_DONTFRAGMENT选项。该选项在JDK 19才加入，为了兼容旧版本通过反射获取
+     */
+    @SuppressWarnings("unchecked")
+    private void setDontFragment() {
+        try {
+            Class<?> options = Class.forName("jdk.net.ExtendedSocketOptions");
+            SocketOption<Boolean> option = (SocketOption<Boolean>) options.getField("IP_DONTFRAGMENT").get(null);
+            for (Shard shard : shards) shard.transport.setOption(option, true);
+        } catch (ReflectiveOperationException | UnsupportedOperationException | IOException ignored) {
+            //不支持，探测包可能被分片
+        }
+    }
+
+    /**
+     * 设置接收端的内存预算，默认不限。计入的是已收到、但监听器还没有处理完的数据：
+     * 接收窗口中的数据包，以及交给回调线程、监听器尚未返回的消息和数据块。
+     * <p>接收方在确认包和连接回应中通告还能接收多少个数据包，发送方在途的包不超过它（至少保留一个，用于得知窗口重新打开），
+     * 因此监听器处理得慢时发送方随之变慢，而不是占满接收方的内存。超过预算的数据包被丢弃，由发送方重传；
+     * 整个信道超过预算时暂不回应新的连接请求，发送方稍后重试。
+     * <p>不是流式接收时，整个消息到齐之前都要留在内存中，因此每个会话的预算应不小于最大的消息。
+     * 收到的数据包表明消息比预算（两者中较小的一个）还大时，接收方丢弃已收到的部分并拒绝这个消息，
+     * 发送任务以失败结束并且{@link SendTask#isRejected()}为true，而不是等到重试次数用完。
+     *
+     * @param channelBytes 整个信道的预算（字节）
+     * @param peerBytes    每个会话的预算（字节），不超过channelBytes
+     */
+    public RDatagramChannel setReceiveMemoryLimit(long channelBytes, long peerBytes) {
+        if (channelBytes <= 0 || peerBytes <= 0) return this;
+        this.receiveMemoryLimit = channelBytes;
+        this.peerReceiveMemoryLimit = Math.min(peerBytes, channelBytes);
+        return this;
+    }
+
+    /**
+     * 接收端目前占用的内存（字节），见{@link #setReceiveMemoryLimit(long, long)}
+     */
+    public long getReceiveMemory() {
+        return receiveMemory.get();
+    }
+
+    /**
+     * 设置接收缓冲池最多保留的空闲缓冲区个数，默认4096个（约4MB直接内存）
+     */
+    public RDatagramChannel setReceiveBufferPoolSize(int size) {
+        if (size < 0) return this;
+        receiveBufferPool.setMaxPooled(size);
+        return this;
+    }
+
+    public void setReceiveListener(ReceiveListener receiveListener) {
+        this.receiveListener = receiveListener;
+    }
+
+    /**
+     * 设置执行回调的Executor，包括接收监听器、流式接收监听器、请求处理器和发送任务的回调。默认（或设为null）时所有回调在一个回调线程上按顺序执行，
+     * 回调线程跟不上时事件循环随之等待。设置后不同消息的回调并发执行，同一个消息（流式接收时的各个数据块）、同一个发送任务的回调仍按顺序逐个执行；
+     * 需要同一地址的消息也逐个交付时见{@link #setOrderedDelivery(boolean)}。
+     * <p>监听器会阻塞时，可以用{@link #virtualThreadExecutor()}每个消息一个虚拟线程，成千上万个消息同时阻塞也不增加平台线程。
+     * 此时积压由接收内存预算限制（见{@link #setReceiveMemoryLimit(long, long)}）：监听器返回之前，消息占用的预算不释放。
+     * <p>Executor由调用方管理，关闭信道时不关闭它。Executor拒绝执行（如已关闭）时回调改在事件循环线程上执行，以免消息占用的缓冲区和预算不能释放。
+     * 应在开始接收之前设置
+     */
+    public RDatagramChannel setCallbackExecutor(Executor executor) {
+        this.callbackExecutor = executor == null ? null : new SerialExecutor(executor);
+        return this;
+    }
+
+    /**
+     * 设置是否按地址有序交付，默认关闭，只在设置了回调执行器时有意义（默认的单个回调线程总是逐个交付）。
+     * 开启后同一地址的消息逐个交给监听器，顺序为消息收齐的顺序（不一定是发送的顺序，需要按发送顺序时见{@link Reliability#ordered()}），
+     * 不同地址的消息仍然并发
+     */
+    public RDatagramChannel setOrderedDelivery(boolean orderedDelivery) {
+        this.orderedDelivery = orderedDelivery;
+        return this;
+    }
+
+    /**
+     * 每个任务一个虚拟线程的Executor，需要JDK 21及以上，为了兼容旧版本通过反射获取，不支持则返回null。
+     * 返回的Executor由调用方关闭
+     */
+    public static ExecutorService virtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 设置请求处理器，处理对端用{@link #request(ByteBuffer, InetSocketAddress, long)}发来的请求。
+     * 没有设置时请求去掉id后交给{@link ReceiveListener}，无法回复
+     */
+    public RDatagramChannel setRequestHandler(RequestHandler requestHandler) {
+        this.requestHandler = requestHandler;
+        return this;
+    }
+
+    /**
+     * 设置流式接收监听器。设置之后新到的消息不再整合成一个数组交给{@link ReceiveListener}，
+     * 而是一段一段按顺序交给此监听器，数据包交出后即释放。设为null则恢复整合。
+     */
+    public void setStreamReceiveListener(StreamReceiveListener streamReceiveListener) {
+        this.streamReceiveListener = streamReceiveListener;
+    }
+
+    /**
+     * 发送数据，数据被分割成若干个小包，每个包的内容为一个分段大小（默认1KB，见{@link #setSegmentSize(int)}），每个包默认重试15次，间隔根据测得的RTT自适应，最长200ms。
+     * 如果超过重试次数后，超时仍未收到ACK，则发送失败。
+     * 与该地址还没有会话时，首先发一个连接请求建立会话，之后的消息直接发送数据包，不再握手。
+     * 最后一个数据包带有结束标志，接收方收齐后进行整合。
+     * <p>不超过一个分段（还没有和该地址建立过会话时为默认的{@value #DEFAULT_SEGMENT_SIZE}字节）的消息作为单包消息直接发送，
+     * 不需要会话，收到确认即完成，只需一个RTT。接收方按（地址，发送id）去重。
+     * <p>
+     * 允许同时发送多个数据。发往同一地址的多个消息共享拥塞窗口，按优先级调度（见{@link #send(ByteBuffer, InetSocketAddress, int)}），
+     * 优先级相同时剩余数据包少的消息先发，因此小消息不会排在大块数据后面。
+     * 发送的是data的position到limit之间的数据，不改变data的position和limit。
+     * 数据包在发送窗口推进时才从data中切出，因此发送完成（或失败）之前不要修改data的内容。
+     *
+     * @return 发送任务对象，用于实时监控发送状态，并且提供回调方法。
+     */
+    public SendTask send(ByteBuffer data, InetSocketAddress address) {
+        return send(data, address, SendTask.PRIORITY_DEFAULT);
+    }
+
+    /**
+     * 以指定的优先级发送数据，其余同{@link #send(ByteBuffer, InetSocketAddress)}。
+     * <p>拥塞窗口有空间时，先发送优先级高的消息的数据包，优先级低的消息只使用剩余的窗口。
+     * 适合让控制消息、交互消息越过同一地址上正在进行的大块传输。
+     *
+     * @param priority 优先级，越大越先发送，默认为{@value SendTask#PRIORITY_DEFAULT}
+     */
+    public SendTask send(ByteBuffer data, InetSocketAddress address, int priority) {
+        return send(data, address, priority, Reliability.RELIABLE);
+    }
+
+    /**
+     * 按指定的可靠性策略发送数据，其余同{@link #send(ByteBuffer, InetSocketAddress)}。
+     * <p>超过生存时间或最大重传次数的消息不再重传，接收方丢弃已收到的部分，发送任务以失败结束并且{@link SendTask#isExpired()}为true。
+     * 有序消息总是在会话中发送，不作为单包消息。
+     *
+     * @param reliability 可靠性策略，见{@link Reliability}
+     */
+    public SendTask send(ByteBuffer data, InetSocketAddress address, Reliability reliability) {
+        return send(data, address, SendTask.PRIORITY_DEFAULT, reliability);
+    }
+
+    /**
+     * 以指定的优先级和可靠性策略发送数据
+     *
+     * @param priority    优先级，越大越先发送
+     * @param reliability 可靠性策略，见{@link Reliability}
+     */
+    public SendTask send(ByteBuffer data, InetSocketAddress address, int priority, Reliability reliability) {
+        return send(data, address, priority, reliability, (byte) 0);
+    }
+
+    /**
+     * @param flags 每个数据包额外带的标志位
+     */
+    private SendTask send(ByteBuffer data, InetSocketAddress address, int priority, Reliability reliability, byte flags) {
+        int threshold = compressionThreshold;
+        ByteBuffer compressed = threshold >= 0 && data.remaining() >= threshold ? Compression.deflate(data) : null;
+        if (compressed == null) return send(PacketSource.of(data), null, address, priority, reliability, flags);
+        return send(PacketSource.of(compressed), PacketSource.of(data), address, priority, reliability, flags);
+    }
+
+    /**
+     * 发送数据，返回在发送完成时完成的CompletableFuture，其余同{@link #send(ByteBuffer, InetSocketAddress)}。
+     * 发送失败（包括按可靠性策略放弃）时以IOException异常完成，信道关闭时为{@link ClosedChannelException}。回调在回调线程上执行
+     */
+    public CompletableFuture<SendResult> sendAsync(ByteBuffer data, InetSocketAddress address) {
+        return sendAsync(data, address, SendTask.PRIORITY_DEFAULT, Reliability.RELIABLE);
+    }
+
+    /**
+     * 以指定的优先级和可靠性策略发送数据，返回在发送完成时完成的CompletableFuture
+     *
+     * @param priority    优先级，越大越先发送
+     * @param reliability 可靠性策略，见{@link Reliability}
+     */
+    public CompletableFuture<SendResult> sendAsync(ByteBuffer data, InetSocketAddress address, int priority, Reliability reliability) {
+        return toFuture(send(data, address, priority, reliability), address);
+    }
+
+    /**
+     * 发送请求，返回在收到对端回复时完成的CompletableFuture，回复的数据为只读的ByteBuffer。
+     * 对端用{@link #setRequestHandler(RequestHandler)}处理请求并回复；请求和回复以请求方分配的id对应，id放在消息开头，
+     * 数据包带请求或回复的标志位。请求和回复总是整合成整个消息，不交给流式接收监听器。
+     * <p>请求发送失败时以IOException异常完成，timeoutMillis毫秒内没有收到回复则以TimeoutException异常完成，之后到达的回复被丢弃。
+     * 信道关闭时尚未收到回复的请求以{@link ClosedChannelException}异常完成。
+     * 回调在回调线程上执行。发送时复制一次data
+     *
+     * @param timeoutMillis 等待回复的最长时间，毫秒
+     */
+    public CompletableFuture<ByteBuffer> request(ByteBuffer data, InetSocketAddress address, long timeoutMillis) {
+        PendingRequest pending = new PendingRequest(address);
+        if (closed) {
+            pending.future.completeExceptionally(new ClosedChannelException());
+            return pending.future;
+        }
+        long id = nextRequestId.incrementAndGet();
+        requests.put(id, pending);
+        Shard loop = shardFor(address);
+        loop.execute(() -> {
+            if (requests.get(id) != pending) return; //已经结束
+            pending.timeout = loop.timer.newTimeout(() -> {
+                if (requests.remove(id, pending))
+                    pending.future.completeExceptionally(new TimeoutException("no reply from " + address + " in " + timeoutMillis + "ms"));
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+        });
+        SendTask task = send(correlated(id, data), address, SendTask.PRIORITY_DEFAULT, Reliability.RELIABLE, RDatagram.FLAG_REQUEST);
+        task.onFailed(() -> {
+            if (requests.remove(id, pending)) {
+                cancelTimeout(pending);
+                pending.future.completeExceptionally(failure(task, "request", address));
+            }
+        });
+        return pending.future;
+    }
+
+    /**
+     * 请求已结束，取消等待回复的超时。定时器只在事件循环上访问；超时还没有安排时，安排的任务会发现请求已结束
+     */
+    private void cancelTimeout(PendingRequest pending) {
+        shardFor(pending.address).execute(() -> {
+            if (pending.timeout != null) pending.timeout.cancel();
+        });
+    }
+
+    /**
+     * 回复一个请求，见{@link Request#reply(ByteBuffer)}
+     */
+    CompletableFuture<SendResult> reply(Request request, ByteBuffer data) {
+        InetSocketAddress address = request.getAddress();
+        return toFuture(send(correlated(request.getId(), data), address, SendTask.PRIORITY_DEFAULT, Reliability.RELIABLE, RDatagram.FLAG_RESPONSE), address);
+    }
+
+    /**
+     * 在数据前面加上8字节的请求id
+     */
+    private static ByteBuffer correlated(long id, ByteBuffer data) {
+        ByteBuffer message = ByteBuffer.allocate(8 + data.remaining());
+        message.putLong(id).put(data.duplicate()).flip();
+        return message;
+    }
+
+    /**
+     * 发送任务结束时完成的CompletableFuture
+     */
+    private CompletableFuture<SendResult> toFuture(SendTask task, InetSocketAddress address) {
+        CompletableFuture<SendResult> future = new CompletableFuture<>();
+        if (task == null) {
+            future.completeExceptionally(new IllegalArgumentException("empty message"));
+            return future;
+        }
+        task.onCompleted(() -> future.complete(new SendResult(address, task.originalLength, task.total, clock.nanoTime() - task.createTime)));
+        task.onFailed(() -> future.completeExceptionally(failure(task, "send", address)));
+        return future;
+    }
+
+    /**
+     * 发送失败的异常，信道已关闭时为ClosedChannelException
+     */
+    private IOException failure(SendTask task, String what, InetSocketAddress address) {
+        if (closed) return new ClosedChannelException();
+        if (task.isRejected()) return new IOException(what + " rejected, message exceeds the receiver's memory budget: " + address);
+        return new IOException(what + (task.isExpired() ? " expired: " : " failed: ") + address);
+    }
+
+    /**
+     * 发送文件从当前位置到末尾的内容，不改变文件的位置。
+     * 文件按区域做内存映射，发送窗口推进时才读取对应的数据包，因此无论文件多大，发送端都只占用约一个发送窗口的内存。
+     * 发送完成（或失败）之前不要关闭或修改文件。
+     * <p>接收方会把整个消息整合成一个数组，大文件请在接收方设置{@link StreamReceiveListener}；
+     * 超过{@link #MAX_MESSAGE_LENGTH}的消息只能流式接收，否则被拒绝（{@link SendTask#isRejected()}）。
+     *
+     * @return 发送任务对象，读取文件失败时返回null
+     */
+    public SendTask send(FileChannel file, InetSocketAddress address) {
+        return send(file, address, SendTask.PRIORITY_DEFAULT);
+    }
+
+    /**
+     * 以指定的优先级发送文件，其余同{@link #send(FileChannel, InetSocketAddress)}
+     *
+     * @param priority 优先级，越大越先发送
+     */
+    public SendTask send(FileChannel file, InetSocketAddress address, int priority) {
+        try {
+            return send(PacketSource.of(file), null, address, priority, Reliability.RELIABLE, (byte) 0);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * 从信道按顺序读取length个字节并发送，发送窗口推进时才读取。
+     * 信道应为阻塞模式，读取在事件循环线程上进行，应当很快（如文件、内存）；信道在读满length个字节之前结束，则发送失败。
+     * 发送完成（或失败）之前不要关闭信道，发送结束后也不会关闭信道。
+     *
+     * @param length 要发送的字节数
+     * @return 发送任务对象
+     */
+    public SendTask send(ReadableByteChannel channel, long length, InetSocketAddress address) {
+        return send(channel, length, address, SendTask.PRIORITY_DEFAULT);
+    }
+
+    /**
+     * 以指定的优先级从信道读取并发送，其余同{@link #send(ReadableByteChannel, long, InetSocketAddress)}
+     *
+     * @param priority 优先级，越大越先发送
+     */
+    public SendTask send(ReadableByteChannel channel, long length, InetSocketAddress address, int priority) {
+        return send(PacketSource.of(channel, length), null, address, priority, Reliability.RELIABLE, (byte) 0);
+    }
+
+    /**
+     * @param original 压缩前的数据，没有压缩则为null
+     * @param flags    每个数据包额外带的标志位
+     */
+    private SendTask send(PacketSource source, PacketSource original, InetSocketAddress address, int priority, Reliability reliability, byte flags) {
+        if (source.length() <= 0) return null;
+        SendTask sendTask = new SendTask(0, source.length(), segmentSize); //消息id在开始发送时分配
+        if (original != null) sendTask.originalLength = original.length();
+        if (closed) {
+            source.close();
+            if (original != null) original.close();
+            metrics.messagesFailed.increment();
+            sendTask.fail(); //之后设置的失败回调立即调用
+            return sendTask;
+        }
+        Peer peer = peers.computeIfAbsent(address, a -> new Peer(a, shardFor(a), new CongestionWindow(congestionControl, maxSendWindow), clock.nanoTime()));
+        sendTask.priority = priority;
+        sendTask.reliability = reliability;
+        sendTask.flags = flags;
+        sendTask.createTime = clock.nanoTime();
+        if (reliability.getLifetimeMillis() > 0)
+            sendTask.deadline = clock.nanoTime() + TimeUnit.MILLISECONDS.toNanos(reliability.getLifetimeMillis());
+        peer.loop.execute(() -> submit(sendTask, source, original, peer));
+        return sendTask;
+    }
+
+    /**
+     * 开启路径MTU探测时，对新的对端开始探测。在对端所属的事件循环上调用
+     */
+    private void startProbe(Peer peer) {
+        if (!pathMtuDiscovery || segmentSize <= DEFAULT_SEGMENT_SIZE) return;
+        if (peer.probe != null || peer.segmentSize != 0) return;
+        peer.probe = new PathMtuProbe(DEFAULT_SEGMENT_SIZE, segmentSize);
+        peer.segmentSize = DEFAULT_SEGMENT_SIZE;
+        Random random = new Random();
+        while (peer.probeId == 0) peer.probeId = random.nextLong();
+        probe(peer);
+    }
+
+    /**
+     * 发送下一个探测包，探测结束则记录结果
+     */
+    private void probe(Peer peer) {
+        PathMtuProbe probe = peer.probe;
+        if (peer.probeTimer != null) peer.probeTimer.cancel();
+        peer.probeTimer = null;
+        if (probe.done()) {
+            resizeSegment(peer, probe.low());
+            peer.probe = null;
+            return;
+        }
+        int size = probe.size();
+        probe.onSend();
+        RDatagram rDatagram = new RDatagram(peer.probeId, 0, size, RDatagram.TYPE_PROBE, size);
+        rDatagram.address = peer.address;
+        sendDatagram(peer.loop.transport, rDatagram);
+        peer.probeTimer = peer.loop.timer.newTimeout(() -> {
+            if (peer.probe != probe || probe.size() != size) return; //已收到回应
+            probe.onTimeout();
+            probe(peer);
+        }, retransmitTimeout(peer, probe.tries()), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 发送端收到探测回应
+     */
+    private void doProbeAck(Peer peer, RDatagram probeAck) {
+        if (peer.probe == null || probeAck.getSendId() != peer.probeId) return;
+        int size = probeAck.getSeq();
+        if (size != peer.probe.size()) return; //过时的回应
+        peer.probe.onAck(size);
+        resizeSegment(peer, peer.probe.low()); //之后的传输使用已确认的大小
+        probe(peer);
+    }
+
+    /**
+     * 修改对端的分段大小。拥塞窗口以包计，按新旧大小之比缩放，避免用小包时增长起来的窗口一次发出过多的大包
+     */
+    private void resizeSegment(Peer peer, int segmentSize) {
+        if (segmentSize == peer.segmentSize) return;
+        peer.window.scale((double) peer.segmentSize / segmentSize);
+        peer.segmentSize = segmentSize;
+    }
+
+    /**
+     * 接收端收到完整的探测包，回应之
+     */
+    private void doProbe(Shard shard, RDatagram probe) {
+        ByteBuffer out = shard.scratch;
+        out.clear();
+        Header.write(out, probe.getSeq(), RDatagram.HEADER_LENGTH, RDatagram.TYPE_PROBE_ACK, probe.getSendId(), 0);
+        out.limit(RDatagram.HEADER_LENGTH);
+        send(shard.transport, out, probe.address);
+    }
+
+    /**
+     * 提交一个消息。与该地址的会话已建立则立即开始发送，否则等待握手。在对端所属的事件循环上调用
+     */
+    private void submit(SendTask sendTask, PacketSource source, PacketSource original, Peer peer) {
+        Send send = new Send(sendTask, source, peer);
+        send.original = original;
+        if (closed) {
+            fail(send); //提交之后信道关闭了
+            return;
+        }
+        startProbe(peer);
+        Reliability reliability = sendTask.reliability;
+        if (sendTask.deadline != 0)
+            send.expiry = peer.loop.timer.newTimeout(() -> abandon(send), sendTask.deadline - clock.nanoTime(), TimeUnit.NANOSECONDS);
+        if (reliability.isOrdered()) {
+            while (!peer.ordered.isEmpty() && peer.ordered.peek().finished) peer.ordered.poll();
+            peer.ordered.add(send);
+        } else if (original == null && source.length() <= singleLimit(peer)) {
+            startSingle(send);
+            return;
+        }
+        peer.lastActive = clock.nanoTime();
+        if (peer.sessionState == Peer.OPEN) {
+            start(send);
+        } else {
+            peer.pending.add(send);
+            if (peer.sessionState == Peer.CLOSED) connect(peer);
+        }
+    }
+
+    /**
+     * 单包消息的最大长度：不超过本端和对端接受的分段大小。还没有和对端建立过会话时，假定对端能接收默认分段大小
+     */
+    private int singleLimit(Peer peer) {
+        int limit = Math.min(segmentSize, peer.sessionSegmentSize > 0 ? peer.sessionSegmentSize : DEFAULT_SEGMENT_SIZE);
+        if (peer.segmentSize > 0) limit = Math.min(limit, peer.segmentSize);
+        return limit;
+    }
+
+    /**
+     * 不建立会话，直接发送单包消息，收到确认即完成（0-RTT）。与其他消息共享对端的拥塞窗口，超时重传的方式也相同
+     */
+    private void startSingle(Send send) {
+        Peer peer = send.peer;
+        SendTask sendTask = send.task;
+        int segment = singleLimit(peer);
+        if (segment != sendTask.segmentSize) sendTask.resize(segment);
+        Random random = new Random();
+        long sendId = random.nextLong();
+        while (sendId == 0 || peer.singles.containsKey(sendId)) sendId = random.nextLong();
+        sendTask.sendId = sendId;
+        send.sendId = sendId;
+        send.single = true;
+        send.segmentSize = segment;
+        send.totalPackages = 1;
+        peer.singles.put(sendId, send);
+        schedule(send);
+        if (sendTask.onConnected != null && !sendTask.connected) {
+            sendTask.connected = true;
+            callback(sendTask, sendTask.onConnected);
+        }
+        transmitNew(peer);
+    }
+
+    /**
+     * 发起连接请求建立会话，并且重试retryTime次，每次间隔由测得的RTT决定，不超过retryIntervalMillis毫秒。超过重试时间而未收到连接回应，则连接失败，等待握手的消息都发送失败。
+     * Initialize and send a connection request, and retry for {@link this.retryTime} times with an RTT-based interval of at most {@link this.retryIntervalMillis} ms.
+     * If the retry time exceeds and no connection response is received, the connection fails and the pending sends fail.
+     *
+     * @param peer 接收方 the receiver
+     */
+    private void connect(Peer peer) {
+        Random random = new Random();
+        long sessionId = random.nextLong();
+        while (sessionId == 0 || sessionId == peer.sessionId) sessionId = random.nextLong();
+        peer.sessionId = sessionId;
+        peer.remoteSessionId = 0;
+        peer.sessionState = Peer.CONNECTING;
+        RDatagram connectRequest = new RDatagram(sessionId, 0, 0, RDatagram.TYPE_CONNECT_REQUEST, 6);
+        connectRequest.putDataInt(0, segmentSize);
+        connectRequest.data.put(RDatagram.HEADER_LENGTH + 4, (byte) fec);
+        connectRequest.data.put(RDatagram.HEADER_LENGTH + 5, (byte) 1); //能解压
+        connectRequest.address = peer.address;
+        connectRequest.sendTimes = 1;
+        connectRequest.lastSendTime = clock.nanoTime();
+        peer.connectRequest = connectRequest;
+        peer.sessionTimer = peer.loop.timer.newTimeout(() -> retryConnect(peer, connectRequest), retransmitTimeout(peer, 1), TimeUnit.NANOSECONDS);
+        sendDatagram(peer.loop.transport, connectRequest);
+    }
+
+    /**
+     * 连接请求超时未回应，重新发送。超过重试次数则连接失败。
+     */
+    private void retryConnect(Peer peer, RDatagram connRequest) {
+        if (peer.connectRequest != connRequest) return; //已收到回应
+        if (connRequest.sendTimes >= retryTime) {
+            peer.connectRequest = null;
+            peer.sessionTimer = null;
+            peer.sessionState = Peer.CLOSED;
+            metrics.connectFailures.increment();
+            Send send;
+            while ((send = peer.pending.poll()) != null) fail(send);
+            return;
+        }
+        sendDatagram(peer.loop.transport, connRequest);
+        connRequest.sendTimes++;
+        connRequest.lastSendTime = clock.nanoTime();
+        peer.sessionTimer = peer.loop.timer.newTimeout(() -> retryConnect(peer, connRequest), retransmitTimeout(peer, connRequest.sendTimes), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 在已建立的会话中开始发送一个消息：分配消息id，按会话接受的和路径MTU探测得出的分段大小分段
+     */
+    private void start(Send send) {
+        Peer peer = send.peer;
+        SendTask sendTask = send.task;
+        int segment = peer.sessionSegmentSize;
+        if (peer.segmentSize > 0) segment = Math.min(segment, peer.segmentSize);
+        if (peer.sessionFec > 0) segment -= FecBlock.OVERHEAD; //校验包不超过分段大小
+        if (send.original != null && !peer.sessionCompression) {
+            //接收方不支持压缩，改为发送原数据
+            send.source.close();
+            send.source = send.original;
+            send.original = null;
+            sendTask.total = sendTask.originalLength;
+            sendTask.resize(segment);
+        }
+        if (segment != sendTask.segmentSize) sendTask.resize(segment);
+        sendTask.sendId = ++peer.nextMessageId;
+        send.fec = peer.sessionFec > 0 ? new FecBlock(segment) : null;
+        send.sendId = sendTask.sendId;
+        send.segmentSize = segment;
+        send.totalPackages = sendTask.totalPackages;
+        peer.messages.put(send.sendId, send);
+        schedule(send);
+        if (sendTask.onConnected != null && !sendTask.connected) {
+            sendTask.connected = true;
+            callback(sendTask, sendTask.onConnected);
+        }
+        transmitNew(peer);
+    }
+
+    /**
+     * 把开始发送的传输放进对端的发送队列，按其发送任务的优先级调度
+     */
+    private void schedule(Send send) {
+        send.priority = send.task.priority;
+        send.order = ++send.peer.scheduled;
+        send.peer.unsent.add(send);
+    }
+
+    /**
+     * 会话的定时检查：没有消息在发送、并且空闲超过{@link #sessionIdleTimeoutMillis}则关闭会话，
+     * 否则在没有消息在发送时发送保活包，使接收方的会话和沿途NAT的映射不过期
+     */
+    private void keepAlive(Peer peer) {
+        if (peer.sessionState != Peer.OPEN) return;
+        boolean idle = peer.messages.isEmpty();
+        if (idle && clock.nanoTime() - peer.lastActive >= TimeUnit.MILLISECONDS.toNanos(sessionIdleTimeoutMillis)) {
+            closeSession(peer);
+            return;
+        }
+        if (idle) {
+            ByteBuffer out = peer.loop.scratch;
+            out.clear();
+            Header.write(out, 0, RDatagram.HEADER_LENGTH, RDatagram.TYPE_KEEPALIVE, peer.sessionId, peer.remoteSessionId);
+            out.limit(RDatagram.HEADER_LENGTH);
+            send(peer.loop.transport, out, peer.address);
+        }
+        peer.sessionTimer = peer.loop.timer.newTimeout(() -> keepAlive(peer), keepAliveMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 关闭会话，之后的消息重新握手。不通知接收方，接收方的会话空闲超时后自行过期
+     */
+    private void closeSession(Peer peer) {
+        peer.sessionState = Peer.CLOSED;
+        peer.remoteSessionId = 0;
+        if (peer.sessionTimer != null) peer.sessionTimer.cancel();
+        peer.sessionTimer = null;
+    }
+
+    /**
+     * 接收方不认识这个会话（已过期或者接收方重启过）。关闭会话，能重新读取的消息在新的会话中从头重发，其余的发送失败
+     */
+    private void doReset(Peer peer, RDatagram reset) {
+        if (peer.sessionState != Peer.OPEN || reset.getReceiveId() != peer.remoteSessionId) return;
+        metrics.resets.increment();
+        closeSession(peer);
+        List<Send> sends = new ArrayList<>(peer.messages.size());
+        peer.messages.forEachValue(sends::add);
+        sends.sort(Comparator.comparingLong(send -> send.sendId)); //按原来的顺序重发，排在等待握手的消息之前
+        Deque<Send> pending = new ArrayDeque<>();
+        for (Send send : sends) {
+            if (send.built == 0 || send.source.rewindable()) {
+                rewind(send);
+                pending.add(send);
+            } else {
+                fail(send);
+            }
+        }
+        pending.addAll(peer.pending);
+        peer.pending.clear();
+        peer.pending.addAll(pending);
+        if (!peer.pending.isEmpty()) connect(peer);
+    }
+
+    /**
+     * 丢弃已发出的数据包，回到尚未开始发送的状态
+     */
+    private void rewind(Send send) {
+        Peer peer = send.peer;
+        PacketWindow window = send.window;
+        for (int i = window.base(), end = window.end(); i < end; i++) window.remove(i);
+        peer.window.onRelease(send.inFlight);
+        peer.unsent.remove(send);
+        peer.messages.remove(send.sendId);
+        if (send.timer != null) send.timer.cancel();
+        send.timer = null;
+        send.inFlight = 0;
+        send.built = 0;
+        send.sentTotal = 0;
+        send.task.sent = 0;
+    }
+
+    /**
+     * 发送ack，确认目前为止收到的所有DATA包：累计确认号以及之后收到的若干个区间（SACK）。
+     * 每收到{@link #ackEvery}个包、收到乱序或重复的包、或者全部收到时立即确认，否则最多延迟{@link #ackDelayMillis}毫秒。
+     *
+     * @param receive 接收信息
+     */
+    private void sendAck(Receive receive) {
+        receive.unacked = 0;
+        Shard shard = receive.session.shard;
+        ByteBuffer out = shard.scratch;
+        receive.writeAck(out, receiveWindow(receive.session));
+        send(shard.transport, out, receive.address);
+    }
+
+    /**
+     * 接收端为一个会话通告的接收窗口：按会话和整个信道剩余的内存预算，还能接收多少个数据包
+     */
+    private int receiveWindow(Session session) {
+        long available = Math.min(peerReceiveMemoryLimit - session.memory.get(), receiveMemoryLimit - receiveMemory.get());
+        return (int) Math.min(Math.max(available, 0) / session.segmentSize, Integer.MAX_VALUE);
+    }
+
+    /**
+     * 接收端收下一个数据包之前占用内存预算。会话中没有占用内存时总是可以收下，保证发送方的探测包能被确认
+     *
+     * @return 超过预算则返回false，数据包应丢弃
+     */
+    private boolean reserve(Session session, int bytes) {
+        long used = session.memory.get();
+        if (used > 0 && (used + bytes > peerReceiveMemoryLimit || receiveMemory.get() + bytes > receiveMemoryLimit))
+            return false;
+        session.memory.addAndGet(bytes);
+        receiveMemory.addAndGet(bytes);
+        return true;
+    }
+
+    /**
+     * 解压整合好的消息之前，按声明的原始长度占用内存预算，在回调线程上调用。压缩的数据只按收到的字节数计入预算，
+     * 解压后的大小要在分配之前另外计入
+     *
+     * @return 超过预算则返回false，消息应丢弃
+     */
+    private boolean reserveInflated(Session session, long bytes) {
+        if (session.memory.get() + bytes > peerReceiveMemoryLimit || receiveMemory.get() + bytes > receiveMemoryLimit)
+            return false;
+        session.memory.addAndGet(bytes);
+        receiveMemory.addAndGet(bytes);
+        return true;
+    }
+
+    /**
+     * 不是流式接收时，收到的数据包是否表明整个消息放不进内存预算，或者超过一个数组能容纳的{@link #MAX_MESSAGE_LENGTH}。
+     * 除最后一个包外的包都是满的，由包的下标可知消息至少有多长
+     */
+    private boolean tooLarge(Receive receive, int index, int length, boolean last) {
+        long min = last ? (long) index * receive.segmentSize + length : (long) (index + 1) * length;
+        return min > Math.min(Math.min(peerReceiveMemoryLimit, receiveMemoryLimit), MAX_MESSAGE_LENGTH);
+    }
+
+    /**
+     * 通知发送方这个消息被拒绝。不需要回应，丢失时发送方重传的包会再次得到拒绝
+     */
+    private void sendReject(Receive receive, InetSocketAddress address) {
+        Shard shard = receive.session.shard;
+        ByteBuffer out = shard.scratch;
+        out.clear();
+        Header.write(out, 0, RDatagram.HEADER_LENGTH, RDatagram.TYPE_REJECT, receive.messageId, receive.session.id);
+        out.limit(RDatagram.HEADER_LENGTH);
+        send(shard.transport, out, address);
+    }
+
+    /**
+     * 释放接收端占用的内存预算，在事件循环或回调线程上调用
+     */
+    private void free(Session session, long bytes) {
+        if (bytes == 0) return;
+        session.memory.addAndGet(-bytes);
+        receiveMemory.addAndGet(-bytes);
+    }
+
+    /**
+     * 延迟确认到期，发送尚未确认的部分
+     */
+    private void flushAck(Receive receive) {
+        receive.ackScheduled = false;
+        if (receive.unacked > 0) sendAck(receive);
+    }
+
+    /**
+     * 事件循环：收包并就地处理，执行转交来的包和任务，推进时间轮。有定时任务时最多睡到下一个刻度
+     */
+    private void loop(Shard shard) {
+        DatagramTransport transport = shard.transport;
+        if (transport == null) return; //打开失败
+        boolean virtual = clock instanceof VirtualClock; //时间推进时才会有定时任务到期，由onTick唤醒
+        try {
+            while (!closed) {
+                shard.wakenUp.set(false);
+                long nanos = shard.timer.size() > 0 ? shard.timer.nanosToNextTick() : -1;
+                if (shard.hasTasks() || nanos == 0) {
+                    transport.await(0);
+                } else {
+                    transport.await(virtual ? -1 : nanos);
+                }
+                receive(shard);
+                runTasks(shard);
+                shard.timer.advance();
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                e.printStackTrace();
+                metrics.errors.increment();
+            }
+        } finally {
+            if (closed) terminate(shard);
+        }
+    }
+
+    /**
+     * 处理其他信道转交来的包，以及其他线程提交的任务
+     */
+    private void runTasks(Shard shard) {
+        RDatagram forwarded;
+        while ((forwarded = shard.inbox.poll()) != null) {
+            Peer peer = peers.get(forwarded.address);
+            if (peer != null) doSender(peer, forwarded);
+            forwarded.release();
+        }
+        Runnable task;
+        while ((task = shard.tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Throwable e) {
+                e.printStackTrace();
+                metrics.errors.increment();
+            }
+        }
+    }
+
+    /**
+     * 读出信道中所有已到达的包，就地分发处理。缓冲区取自缓冲池，处理完或整合完后归还
+     */
+    private void receive(Shard shard) throws IOException {
+        while (true) {
+            BufferPool pool = receiveBufferPool;
+            ByteBuffer buffer = pool.acquire();
+            InetSocketAddress socketAddress = shard.transport.receive(buffer);
+            RDatagram rDatagram = new RDatagram(buffer, pool);
+            if (socketAddress == null) {
+                rDatagram.release();
+                return;
+            }
+            if (buffer.limit() < RDatagram.HEADER_LENGTH || rDatagram.getSendId() == 0 || rDatagram.isTruncated()) {
+                rDatagram.release(); //不完整、超过分段大小或不合法的包
+                continue;
+            }
+            rDatagram.address = socketAddress;
+            metrics.packetsReceived.increment();
+            metrics.bytesReceived.add(buffer.limit());
+            byte type = rDatagram.getType();
+            switch (type) {
+                case RDatagram.TYPE_DATA:
+                    doReceive(shard, rDatagram);
+                    break;
+                case RDatagram.TYPE_CONNECT_REQUEST:
+                    doResponse(shard, rDatagram);
+                    rDatagram.release();
+                    break;
+                case RDatagram.TYPE_PROBE:
+                    doProbe(shard, rDatagram);
+                    rDatagram.release();
+                    break;
+                case RDatagram.TYPE_KEEPALIVE:
+                    doKeepAlive(shard, rDatagram);
+                    rDatagram.release();
+                    break;
+                case RDatagram.TYPE_SINGLE:
+                    doSingle(shard, rDatagram);
+                    break;
+                case RDatagram.TYPE_PARITY:
+                    doParity(shard, rDatagram);
+                    rDatagram.release();
+                    break;
+                case RDatagram.TYPE_FORWARD:
+                    doForward(shard, rDatagram);
+                    rDatagram.release();
+                    break;
+                case RDatagram.TYPE_ACK:
+                case RDatagram.TYPE_CONNECT_RESPONSE:
+                case RDatagram.TYPE_PROBE_ACK:
+                case RDatagram.TYPE_RESET:
+                case RDatagram.TYPE_SINGLE_ACK:
+                case RDatagram.TYPE_REJECT:
+                    //发送端的包，交给对端所属的事件循环
+                    Peer peer = peers.get(socketAddress);
+                    if (peer == null) {
+                        rDatagram.release();
+                    } else if (peer.loop == shard) {
+                        doSender(peer, rDatagram);
+                        rDatagram.release();
+                    } else if (!peer.loop.forward(rDatagram)) {
+                        rDatagram.release(); //转交队列已满，丢弃，由重传恢复
+                    }
+                    break;
+                default:
+                    rDatagram.release();
+            }
+        }
+    }
+
+    /**
+     * 处理发往发送端的包，在对端所属的事件循环上调用
+     */
+    private void doSender(Peer peer, RDatagram rDatagram) {
+        switch (rDatagram.getType()) {
+            case RDatagram.TYPE_ACK:
+                doAck(peer, rDatagram);
+                break;
+            case RDatagram.TYPE_CONNECT_RESPONSE:
+                doSending(peer, rDatagram);
+                break;
+            case RDatagram.TYPE_PROBE_ACK:
+                doProbeAck(peer, rDatagram);
+                break;
+            case RDatagram.TYPE_RESET:
+                doReset(peer, rDatagram);
+                break;
+            case RDatagram.TYPE_SINGLE_ACK:
+                doSingleAck(peer, rDatagram);
+                break;
+            case RDatagram.TYPE_REJECT:
+                doReject(peer, rDatagram);
+                break;
+        }
+    }
+
+    /**
+     * 处理连接请求，建立会话并发送连接回应。这个回应不需要重试，不需要管对方是否收到，重复的请求回应同一个会话。
+     *
+     * @param shard          收到请求的信道，会话放在这里
+     * @param connectRequest 连接请求
+     */
+    private void doResponse(Shard shard, RDatagram connectRequest) {
+        if (connectRequest.getDataLength() < 4) return;
+        long sendId = connectRequest.getSendId();
+        int segment = Math.min(connectRequest.getDataInt(0), segmentSize); //不超过本端能接收的大小
+        if (segment <= 0) return;
+        InetSocketAddress address = connectRequest.address;
+        Connection connection = new Connection(address, sendId);
+        Session session = shard.connections.get(connection);
+        if (session == null) {
+            if (receiveMemory.get() >= receiveMemoryLimit) return; //内存预算已满，暂不回应，发送方会重试
+            Random random = new Random();
+            long sessionId = random.nextLong();
+            while (sessionId == 0 || shard.sessions.containsKey(sessionId)) sessionId = random.nextLong();
+            session = new Session(shard, connection, sessionId, segment);
+            if (connectRequest.getDataLength() >= 5)
+                session.fec = Math.min(connectRequest.data.get(RDatagram.HEADER_LENGTH + 4) & 0xff, FecBlock.MAX_PACKETS);
+            shard.connections.put(connection, session);
+            shard.sessions.put(sessionId, session);
+            Session s = session;
+            shard.timer.newTimeout(() -> checkSession(s), sessionIdleTimeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        session.lastActive = clock.nanoTime();
+        ByteBuffer out = shard.scratch;
+        out.clear();
+        Header.write(out, 0, RDatagram.HEADER_LENGTH + 10, RDatagram.TYPE_CONNECT_RESPONSE, sendId, session.id);
+        out.putInt(RDatagram.HEADER_LENGTH, session.segmentSize);
+        out.put(RDatagram.HEADER_LENGTH + 4, (byte) session.fec);
+        out.put(RDatagram.HEADER_LENGTH + 5, (byte) 1); //接受压缩的消息
+        out.putInt(RDatagram.HEADER_LENGTH + 6, receiveWindow(session));
+        out.limit(RDatagram.HEADER_LENGTH + 10);
+        send(shard.transport, out, address);
+    }
+
+    /**
+     * 会话建立（收到连接回应），开始发送等待握手的消息
+     *
+     * @param connectResponse 从接收方收到的连接回应，给出了接收方的会话id和接受的分段大小
+     */
+    private void doSending(Peer peer, RDatagram connectResponse) {
+        RDatagram connectRequest = peer.connectRequest;
+        if (connectRequest == null || connectResponse.getSendId() != peer.sessionId) return; //重复或过时的回应
+        long receiveId = connectResponse.getReceiveId();
+        if (receiveId == 0) return;
+        int segment = connectResponse.getDataLength() < 4 ? 0 : connectResponse.getDataInt(0);
+        peer.connectRequest = null;
+        if (peer.sessionTimer != null) peer.sessionTimer.cancel();
+        peer.remoteSessionId = receiveId; //之后生成的数据包都带上接收方的会话id
+        peer.sessionSegmentSize = segment > 0 ? Math.min(segment, segmentSize) : DEFAULT_SEGMENT_SIZE;
+        peer.sessionFec = connectResponse.getDataLength() < 5 ? 0 : Math.min(connectResponse.data.get(RDatagram.HEADER_LENGTH + 4) & 0xff, FecBlock.MAX_PACKETS);
+        peer.sessionCompression = connectResponse.getDataLength() >= 6 && connectResponse.data.get(RDatagram.HEADER_LENGTH + 5) == 1;
+        peer.receiveWindow = connectResponse.getDataLength() >= 10 ? connectResponse.getDataInt(6) : Integer.MAX_VALUE;
+        peer.sessionState = Peer.OPEN;
+        peer.nextMessageId = 0;
+        //连接请求没有重发过，可以作为RTT样本
+        if (connectRequest.sendTimes == 1)
+            sampleRtt(peer, clock.nanoTime() - connectRequest.lastSendTime);
+        peer.lastActive = clock.nanoTime();
+        peer.sessionTimer = peer.loop.timer.newTimeout(() -> keepAlive(peer), keepAliveMillis, TimeUnit.MILLISECONDS);
+        Send send;
+        while ((send = peer.pending.poll()) != null) start(send);
+    }
+
+    /**
+     * 接收端收到保活包，刷新会话的活跃时间
+     */
+    private void doKeepAlive(Shard shard, RDatagram keepAlive) {
+        Session session = shard.sessions.get(keepAlive.getReceiveId());
+        if (session == null || session.connection.sendId != keepAlive.getSendId()) {
+            reset(shard, keepAlive);
+            return;
+        }
+        session.lastActive = clock.nanoTime();
+    }
+
+    /**
+     * 接收单包消息：回复确认，不是重复的则交给监听器。接收方只记录最近收到的（地址，发送id），不建立会话
+     */
+    private void doSingle(Shard shard, RDatagram single) {
+        int length = single.getDataLength();
+        long used = receiveMemory.get();
+        if (used > 0 && used + length > receiveMemoryLimit) {
+            //超过内存预算，不确认，由发送方重传
+            metrics.memoryDrops.increment();
+            single.release();
+            return;
+        }
+        ByteBuffer out = shard.scratch;
+        out.clear();
+        Header.write(out, 0, RDatagram.HEADER_LENGTH, RDatagram.TYPE_SINGLE_ACK, single.getSendId(), 0);
+        out.limit(RDatagram.HEADER_LENGTH);
+        send(shard.transport, out, single.address);
+        if (!shard.singles.add(new Connection(single.address, single.getSendId()), clock.nanoTime(), lingerNanos())) {
+            single.release(); //重复的包，可能是确认丢了
+            metrics.duplicates.increment();
+            return;
+        }
+        long receiveId = ++shard.receiveCount * shards.length + shard.index;
+        StreamReceiveListener streamListener = streamReceiveListener;
+        metrics.messagesReceived.increment();
+        byte correlation = (byte) (single.getFlags() & (RDatagram.FLAG_REQUEST | RDatagram.FLAG_RESPONSE));
+        receiveMemory.addAndGet(length);
+        callback(orderedDelivery ? single.address : single, () -> {
+            try {
+                if (streamListener != null && correlation == 0) {
+                    streamListener.onChunk(receiveId, single.address, 0, single.getDataView());
+                    streamListener.onComplete(receiveId, single.address, single.getDataLength());
+                } else {
+                    dispatch(single.address, single.getData(), correlation);
+                }
+            } finally {
+                single.release();
+                receiveMemory.addAndGet(-length);
+            }
+        });
+    }
+
+    /**
+     * 回复会话重置，告诉发送方这个会话不存在
+     */
+    private void reset(Shard shard, RDatagram rDatagram) {
+        ByteBuffer out = shard.scratch;
+        out.clear();
+        Header.write(out, 0, RDatagram.HEADER_LENGTH, RDatagram.TYPE_RESET, rDatagram.getSendId(), rDatagram.getReceiveId());
+        out.limit(RDatagram.HEADER_LENGTH);
+        send(shard.transport, out, rDatagram.address);
+    }
+
+    /**
+     * 会话的定时检查，空闲超过{@link #sessionIdleTimeoutMillis}则过期，丢弃其中未完成的消息
+     */
+    private void checkSession(Session session) {
+        long idle = clock.nanoTime() - session.lastActive;
+        long timeout = TimeUnit.MILLISECONDS.toNanos(sessionIdleTimeoutMillis);
+        Shard shard = session.shard;
+        if (idle < timeout) {
+            shard.timer.newTimeout(() -> checkSession(session), timeout - idle, TimeUnit.NANOSECONDS);
+            return;
+        }
+        shard.sessions.remove(session.id);
+        shard.connections.remove(session.connection);
+        session.receives.forEachValue(this::discard);
+    }
+
+    /**
+     * 消息的定时检查。完成的消息保留一段时间，以便重新确认迟到的重复包；未完成的消息空闲同样长的时间，说明发送方已放弃。
+     * 之后从会话中删除，并且不再接受id不大于它的新消息，避免把迟到的重复包当成新消息
+     */
+    private void checkReceive(Receive receive) {
+        Session session = receive.session;
+        if (session.receives.get(receive.messageId) != receive) return; //会话已过期
+        long idle = clock.nanoTime() - receive.lastActive;
+        long linger = lingerNanos();
+        if (idle < linger) {
+            session.shard.timer.newTimeout(() -> checkReceive(receive), linger - idle, TimeUnit.NANOSECONDS);
+            return;
+        }
+        session.receives.remove(receive.messageId);
+        session.floor = Math.max(session.floor, receive.messageId + 1);
+        discard(receive);
+    }
+
+    /**
+     * 发送方重传一个包的最长时间。完成或放弃的消息在接收方保留这么久
+     */
+    private long lingerNanos() {
+        return Math.max(TimeUnit.MILLISECONDS.toNanos((long) retryTime * retryIntervalMillis), TimeUnit.SECONDS.toNanos(1));
+    }
+
+    /**
+     * 释放消息占用的数据包
+     */
+    private void discard(Receive receive) {
+        receive.blocks = null;
+        PacketWindow window = receive.window;
+        if (window == null) return;
+        receive.window = null;
+        long freed = 0;
+        for (int i = window.base(), end = window.end(); i < end; i++) {
+            RDatagram rDatagram = window.remove(i);
+            if (rDatagram != null) {
+                freed += rDatagram.getDataLength();
+                rDatagram.release();
+            }
+        }
+        free(receive.session, freed);
+    }
+
+    /**
+     * 接收端接收数据。同一个会话中的消息按消息id区分，收到一个新的消息id即开始接收这个消息，收到带{@link RDatagram#FLAG_LAST}的包得知小包总数
+     */
+    private void doReceive(Shard shard, RDatagram rDatagram) {
+        doReceive(shard, rDatagram, false);
+    }
+
+    /**
+     * @param recovered 是否是由校验包恢复出的包，这样的包不再累积到块中
+     */
+    private void doReceive(Shard shard, RDatagram rDatagram, boolean recovered) {
+        Session session = shard.sessions.get(rDatagram.getReceiveId());
+        if (session == null) {
+            reset(shard, rDatagram);
+            rDatagram.release();
+            return;
+        }
+        long now = clock.nanoTime();
+        session.lastActive = now;
+        long messageId = rDatagram.getSendId();
+        int index = rDatagram.getSeq();
+        Receive receive = session.receives.get(messageId);
+        if (receive == null) {
+            if (messageId < session.floor || index < 0 || index >= Receive.MAX_SPAN) {
+                rDatagram.release(); //已经删除的消息，或者不合法的包
+                return;
+            }
+            Receive created = new Receive(session, messageId, ++shard.receiveCount * shards.length + shard.index);
+            created.correlation = (byte) (rDatagram.getFlags() & (RDatagram.FLAG_REQUEST | RDatagram.FLAG_RESPONSE));
+            created.streaming = streamReceiveListener != null && created.correlation == 0; //请求和回复总是整合
+            session.receives.put(messageId, created);
+            shard.timer.newTimeout(() -> checkReceive(created), lingerNanos(), TimeUnit.NANOSECONDS);
+            receive = created;
+        }
+        if (receive.rejected) {
+            sendReject(receive, rDatagram.address); //拒绝的通知可能丢了，重传的包都再回复一次
+            rDatagram.release();
+            return;
+        }
+        boolean last = rDatagram.hasFlag(RDatagram.FLAG_LAST);
+        if (!receive.indexValid(index) || (last && !receive.lastValid(index))) {
+            rDatagram.release();
+            return;
+        }
+        if (!receive.streaming && receive.window != null && tooLarge(receive, index, rDatagram.getDataLength(), last)) {
+            discard(receive);
+            receive.rejected = true;
+            metrics.memoryDrops.increment();
+            sendReject(receive, rDatagram.address);
+            rDatagram.release();
+            return;
+        }
+        boolean ackNow;
+        boolean completed = false;
+        FecBlock block = null;
+        receive.lastActive = now;
+        receive.lastSeq = index;
+        receive.address = rDatagram.address;
+        if (rDatagram.hasFlag(RDatagram.FLAG_ORDERED)) receive.ordered = true;
+        if (rDatagram.hasFlag(RDatagram.FLAG_COMPRESSED)) receive.compressed = true;
+        if (receive.received.get(index)) {
+            ackNow = true; //重复的包，可能是ACK丢了，立即重新确认
+            metrics.duplicates.increment();
+            rDatagram.release();
+        } else if (receive.window != null && !reserve(session, rDatagram.getDataLength())) {
+            ackNow = true; //超过内存预算，丢弃，由发送方重传。确认中带有缩小的接收窗口
+            metrics.memoryDrops.increment();
+            rDatagram.release();
+        } else {
+            if (last) receive.totalPackages = index + 1;
+            else if (receive.segmentSize == 0) receive.segmentSize = rDatagram.getDataLength(); //除最后一个包外都是满的
+            ackNow = index != receive.cumulative; //乱序，立即确认以便发送方尽快得知空缺
+            receive.received.set(index);
+            if (session.fec > 0 && !recovered && receive.window != null) block = accumulate(receive, index, rDatagram);
+            if (receive.window != null) receive.window.put(index, rDatagram);
+            else rDatagram.release(); //已放弃的消息，只确认不保存
+            if (index == receive.cumulative)
+                receive.cumulative = receive.received.nextClearBit(index);
+            receive.unacked++;
+            receive.receivedPackages++;
+            completed = receive.totalPackages > 0 && receive.receivedPackages >= receive.totalPackages;
+            if (completed || receive.unacked >= ackEvery) ackNow = true;
+        }
+        if (!ackNow && !receive.ackScheduled) {
+            receive.ackScheduled = true;
+            Receive r = receive;
+            shard.timer.newTimeout(() -> flushAck(r), ackDelayMillis, TimeUnit.MILLISECONDS);
+        }
+        if (ackNow) sendAck(receive);
+        if (receive.streaming) {
+            if (receive.ordered && receive.delivered == 0 && receive.cumulative > 0 && superseded(receive))
+                discard(receive);
+            if (receive.window != null && receive.delivered < receive.cumulative) deliver(receive);
+        } else if (completed) {
+            doFinal(receive, rDatagram.address);
+        }
+        if (block != null) recover(shard, receive, block);
+    }
+
+    /**
+     * 把新收到的数据包累积到所在的块，块还没有则新建
+     *
+     * @return 所在的块
+     */
+    private FecBlock accumulate(Receive receive, int index, RDatagram rDatagram) {
+        Session session = receive.session;
+        int start = index - index % session.fec;
+        if (receive.blocks == null) receive.blocks = new LongHashMap<>();
+        FecBlock block = receive.blocks.get(start + 1L); //key不能为0
+        if (block == null) {
+            block = new FecBlock(session.segmentSize);
+            block.reset(start);
+            receive.blocks.put(start + 1L, block);
+        }
+        block.add(rDatagram.getDataView());
+        return block;
+    }
+
+    /**
+     * 接收端收到校验包，累积到对应的块，块内只缺一个数据包时恢复它
+     */
+    private void doParity(Shard shard, RDatagram parity) {
+        Session session = shard.sessions.get(parity.getReceiveId());
+        if (session == null || session.fec == 0) return;
+        Receive receive = session.receives.get(parity.getSendId());
+        if (receive == null || receive.window == null) return; //没有收到过数据包、已完成或已放弃
+        int start = parity.getSeq();
+        int flags = parity.getFlags() & 0xff;
+        int count = flags & FecBlock.MAX_PACKETS;
+        if (start < 0 || start % session.fec != 0 || count == 0 || count > session.fec) return;
+        if (receive.received.nextClearBit(start) >= start + count) return; //块内的包都已收到
+        if (receive.blocks == null) receive.blocks = new LongHashMap<>();
+        FecBlock block = receive.blocks.get(start + 1L);
+        if (block == null) {
+            block = new FecBlock(session.segmentSize);
+            block.reset(start);
+            receive.blocks.put(start + 1L, block);
+        }
+        if (block.parity) return; //重复的校验包
+        block.addParity(parity.getDataView(), flags);
+        recover(shard, receive, block);
+    }
+
+    /**
+     * 块内的数据包都已收到则删除这个块；已有校验包并且只缺一个数据包，则恢复出这个包，当作收到的数据包处理
+     */
+    private void recover(Shard shard, Receive receive, FecBlock block) {
+        if (receive.window == null || receive.blocks == null) return;
+        int count = block.count;
+        if (count < 0) count = receive.totalPackages > 0 ? Math.min(receive.session.fec, receive.totalPackages - block.start) : receive.session.fec;
+        if (block.packets >= count) {
+            receive.blocks.remove(block.start + 1L);
+            return;
+        }
+        if (!block.parity || block.packets < count - 1) return;
+        receive.blocks.remove(block.start + 1L);
+        int missing = receive.received.nextClearBit(block.start);
+        int length = block.recoveredLength();
+        if (missing >= block.start + count || length > block.maxLength) return; //与校验包不一致
+        Session session = receive.session;
+        BufferPool pool = receiveBufferPool;
+        ByteBuffer buffer = pool.acquire();
+        if (buffer.capacity() < RDatagram.HEADER_LENGTH + length) {
+            pool.release(buffer);
+            return;
+        }
+        Header.write(buffer, missing, RDatagram.HEADER_LENGTH + length, RDatagram.TYPE_DATA, receive.messageId, session.id);
+        byte packetFlags = receive.ordered ? RDatagram.FLAG_ORDERED : 0;
+        if (block.last && missing == block.start + count - 1) packetFlags |= RDatagram.FLAG_LAST;
+        Header.setFlags(buffer, packetFlags);
+        buffer.position(RDatagram.HEADER_LENGTH);
+        block.writeRecovered(buffer, length);
+        RDatagram rDatagram = new RDatagram(buffer, pool);
+        rDatagram.address = receive.address;
+        metrics.fecRecovered.increment();
+        doReceive(shard, rDatagram, true);
+    }
+
+    /**
+     * 有序消息开始交付前调用：比会话中已交付的有序消息更早发出则应丢弃，否则记为最近交付的有序消息
+     */
+    private boolean superseded(Receive receive) {
+        Session session = receive.session;
+        if (receive.messageId < session.ordered) return true;
+        session.ordered = receive.messageId;
+        return false;
+    }
+
+    /**
+     * 接收端收到放弃消息的通知，丢弃该消息已收到的部分。之后迟到的数据包仍然确认，但不保存
+     */
+    private void doForward(Shard shard, RDatagram forward) {
+        Session session = shard.sessions.get(forward.getReceiveId());
+        if (session == null) return;
+        session.lastActive = clock.nanoTime();
+        Receive receive = session.receives.get(forward.getSendId());
+        if (receive == null || receive.window == null) return; //没有收到过、已完成或已放弃
+        if (receive.streaming && receive.delivered > 0) {
+            StreamReceiveListener listener = streamReceiveListener;
+            long receiveId = receive.receiveId;
+            long length = receive.deliveredBytes;
+            Compression.StreamInflater inflater = receive.inflater;
+            InetSocketAddress address = forward.address;
+            callback(lane(receive), () -> {
+                if (inflater != null) inflater.end();
+                if (listener != null) listener.onAbandoned(receiveId, address, inflater != null ? inflater.length() : length);
+            });
+        }
+        discard(receive);
+    }
+
+    /**
+     * 流式接收：把已经连续的数据包按顺序交给回调线程，由它交给流式接收监听器，交出后释放。
+     */
+    private void deliver(Receive receive) {
+        StreamReceiveListener listener = streamReceiveListener;
+        PacketWindow window = receive.window;
+        long receiveId = receive.receiveId;
+        if (receive.compressed && receive.inflater == null && listener != null)
+            receive.inflater = new Compression.StreamInflater(listener, receiveId);
+        Compression.StreamInflater inflater = receive.inflater;
+        Session session = receive.session;
+        Object lane = lane(receive);
+        while (receive.delivered < receive.cumulative) {
+            RDatagram rDatagram = window.remove(receive.delivered);
+            receive.delivered++;
+            long offset = receive.deliveredBytes;
+            int length = rDatagram.getDataLength();
+            receive.deliveredBytes += length;
+            boolean done = receive.delivered == receive.totalPackages;
+            if (done) receive.window = null;
+            callback(lane, () -> {
+                try {
+                    if (inflater != null)
+                        inflater.onChunk(rDatagram.address, rDatagram.getDataView());
+                    else if (listener != null)
+                        listener.onChunk(receiveId, rDatagram.address, offset, rDatagram.getDataView());
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    metrics.errors.increment();
+                } finally {
+                    rDatagram.release();
+                    free(session, length);
+                }
+                if (done) metrics.messagesReceived.increment();
+                if (done && inflater != null) {
+                    inflater.end();
+                    listener.onComplete(receiveId, rDatagram.address, inflater.length());
+                } else if (done && listener != null) {
+                    listener.onComplete(receiveId, rDatagram.address, offset + length);
+                }
+            });
+        }
+    }
+
+    /**
+     * 接收方拒绝了一个消息（超过其内存预算），以失败结束
+     */
+    private void doReject(Peer peer, RDatagram reject) {
+        if (peer.sessionState != Peer.OPEN || reject.getReceiveId() != peer.remoteSessionId) return;
+        Send send = peer.messages.get(reject.getSendId());
+        if (send == null || send.finished) return;
+        send.task.rejected = true;
+        fail(send);
+    }
+
+    /**
+     * 发送端确认数据包已成功发送，把累计确认号之前的包以及SACK区间内的包从发送窗口删除
+     * Confirm that packets have been successfully sent and delete them from the sending window.
+     *
+     * @param ack 确认包。其序列号与触发确认的数据包相等
+     */
+    private void doAck(Peer peer, RDatagram ack) {
+        if (peer.sessionState != Peer.OPEN || ack.getReceiveId() != peer.remoteSessionId) return;
+        long sendId = ack.getSendId();
+        Send send = peer.messages.get(sendId);
+        if (send == null || send.finished) return;
+        PacketWindow window = send.window;
+        SendTask task = send.task;
+        int dataLength = ack.getDataLength();
+        if (dataLength < 6) return;
+        int cumulative = ack.getDataInt(0);
+        int ranges = ack.getDataShort(4);
+        long now = clock.nanoTime();
+        RDatagram echoed = window.get(ack.getSeq());
+        if (echoed != null && echoed.sendTimes == 1) sampleRtt(peer, now - echoed.lastSendTime); //重传过的包不采样
+        int len = acknowledge(send, window.base(), cumulative, now);
+        for (int i = 0; i < ranges && 6 + (i + 1) * 8 <= dataLength; i++) {
+            int start = ack.getDataInt(6 + i * 8);
+            int end = ack.getDataInt(10 + i * 8);
+            len += acknowledge(send, start, end, now);
+        }
+        int windowAt = 6 + ranges * 8;
+        boolean opened = false;
+        if (ranges >= 0 && windowAt + 4 <= dataLength) {
+            int receiveWindow = ack.getDataInt(windowAt);
+            opened = receiveWindow > peer.receiveWindow;
+            peer.receiveWindow = receiveWindow;
+        }
+        if (len == 0) {
+            //重复的ACK，接收窗口打开了则继续发送
+            if (opened) transmitNew(peer);
+            return;
+        }
+        peer.lastActive = now;
+        acknowledged(send, len);
+    }
+
+    /**
+     * 单包消息被确认，即发送完成
+     */
+    private void doSingleAck(Peer peer, RDatagram ack) {
+        Send send = peer.singles.get(ack.getSendId());
+        if (send == null || send.finished) return;
+        long now = clock.nanoTime();
+        RDatagram echoed = send.window.get(0);
+        if (echoed != null && echoed.sendTimes == 1) sampleRtt(peer, now - echoed.lastSendTime);
+        int len = acknowledge(send, 0, 1, now);
+        if (len > 0) acknowledged(send, len);
+    }
+
+    /**
+     * 一次确认之后更新发送进度，全部确认则完成，并且继续发送该对端的新包
+     *
+     * @param len 本次确认的数据字节数
+     */
+    private void acknowledged(Send send, int len) {
+        Peer peer = send.peer;
+        SendTask task = send.task;
+        task.sent += len;
+        boolean completed = send.sentTotal >= send.totalPackages;
+        if (completed) {
+            send.finished = true;
+            send.source.close();
+            (send.single ? peer.singles : peer.messages).remove(send.sendId);
+            if (send.timer != null) send.timer.cancel();
+            if (send.expiry != null) send.expiry.cancel();
+        }
+        if (task.onSending != null)
+            callback(task, task.onSending);
+        if (completed) {
+            metrics.messagesSent.increment();
+            metrics.messageLatency.recordNanos(clock.nanoTime() - task.createTime);
+            Runnable onCompleted = task.complete();
+            if (onCompleted != null)
+                callback(task, onCompleted);
+            if (task.reliability.isOrdered()) supersede(send);
+        }
+        //窗口腾出了空间，继续发送该对端的新包
+        transmitNew(peer);
+    }
+
+    /**
+     * 从发送窗口删除下标在[from, to)之间的已被确认的包，更新拥塞窗口和发送进度。
+     *
+     * @param send 发送信息
+     * @param from 起始下标（包含）
+     * @param to   结束下标（不包含）
+     * @param now  当前时间(ns)
+     * @return 被确认的数据字节数
+     */
+    private int acknowledge(Send send, int from, int to, long now) {
+        PacketWindow window = send.window;
+        from = Math.max(from, window.base());
+        to = Math.min(to, window.end());
+        int len = 0;
+        for (int i = from; i < to; i++) {
+            RDatagram rDatagram = window.remove(i);
+            if (rDatagram == null) continue;
+            send.peer.window.onAck(now);
+            send.inFlight--;
+            send.sentTotal++;
+            len += rDatagram.getDataLength();
+        }
+        return len;
+    }
 
     /**
-     * 发送端的连接请求
+     * 接收端收到了消息的所有数据包，进行收尾工作。整合在回调线程上进行，不占用事件循环
      */
-    private final Map<Long, RDatagram> connectionRequests;
+    private void doFinal(Receive receive, InetSocketAddress finalAddr) {
+        PacketWindow window = receive.window;
+        if (window == null) return;
+        if (receive.ordered && superseded(receive)) {
+            discard(receive);
+            return;
+        }
+        receive.window = null; //交给回调线程整合
+        int total = receive.totalPackages;
+        int segment = receive.segmentSize;
+        boolean compressed = receive.compressed;
+        byte correlation = receive.correlation;
+        Session session = receive.session;
+        callback(lane(receive), () -> {
+            RDatagram last = window.get(total - 1);
+            long len = (long) (total - 1) * segment + (last == null ? 0 : last.getDataLength());
+            long inflated = 0; //为解压后的数据占用的预算
+            try {
+                byte[] bytes = new byte[(int) len]; //不超过MAX_MESSAGE_LENGTH，见tooLarge
+                for (int i = 0; i < total; i++) {
+                    RDatagram rDatagram = window.remove(i);
+                    if (rDatagram != null) {
+                        rDatagram.getData(bytes, (int) ((long) i * segment));
+                        rDatagram.release();
+                    }
+                }
+                if (compressed) {
+                    long original = Compression.originalLength(bytes);
+                    if (original < 0) return; //数据损坏
+                    if (!reserveInflated(session, original)) {
+                        metrics.memoryDrops.increment(); //解压后超过内存预算
+                        return;
+                    }
+                    inflated = original;
+                    bytes = Compression.inflate(bytes);
+                    if (bytes == null) return; //数据损坏
+                }
+                metrics.messagesReceived.increment();
+                dispatch(finalAddr, bytes, correlation);
+            } finally {
+                //整合失败（如内存不足）时归还剩下的包
+                for (int i = window.base(), end = window.end(); i < end; i++) {
+                    RDatagram rDatagram = window.remove(i);
+                    if (rDatagram != null) rDatagram.release();
+                }
+                free(session, len + inflated); //监听器处理完才释放预算
+            }
+        });
+
+    }
 
     /**
-     * 接收端的连接池，key为连接信息，value为接收id
+     * 记录一个RTT样本(ns)
      */
-    private final Map<Connection, Long> connections;
+    private void sampleRtt(Peer peer, long rtt) {
+        peer.rtt.sample(rtt);
+        metrics.rtt.recordNanos(rtt);
+    }
 
     /**
-     * 发送端的发送信息，key为sendId
+     * 执行回调。没有设置回调执行器时在回调线程上按提交顺序执行；否则在回调执行器上执行，lane相同的回调按提交顺序逐个执行
+     *
+     * @param lane 同一个消息或发送任务的回调用同一个lane，见{@link #lane(Receive)}
      */
-    private final Map<Long, Send> sends;
+    private void callback(Object lane, Runnable task) {
+        SerialExecutor executor = callbackExecutor;
+        if (executor == null) callbackTask.execute(task);
+        else executor.execute(lane, task);
+    }
 
     /**
-     * 接收端的接收信息，key为receiveId
+     * 一个消息的回调的lane：按地址有序交付时为发送方的地址，否则为消息本身
      */
-    private final Map<Long, Receive> receives;
+    private Object lane(Receive receive) {
+        return orderedDelivery ? receive.session.connection.address : receive;
+    }
 
     /**
-     * 发送任务列表
+     * 把整合好的消息交给监听器，在回调线程上调用。回复完成对应的请求，请求交给请求处理器
+     *
+     * @param correlation 请求或回复的标志位，普通消息为0
      */
-    private final Map<Long, SendTask> sendTasks;
+    private void dispatch(InetSocketAddress address, byte[] bytes, byte correlation) {
+        if (correlation != 0 && bytes.length >= 8) {
+            long id = ByteBuffer.wrap(bytes).getLong(0);
+            ByteBuffer body = ByteBuffer.wrap(bytes, 8, bytes.length - 8).slice();
+            if (correlation == RDatagram.FLAG_RESPONSE) {
+                PendingRequest pending = requests.get(id);
+                //只接受发往的地址的回复；已超时的回复丢弃
+                if (pending != null && pending.address.equals(address) && requests.remove(id, pending)) {
+                    cancelTimeout(pending);
+                    pending.future.complete(body.asReadOnlyBuffer());
+                }
+                return;
+            }
+            RequestHandler handler = requestHandler;
+            if (handler != null) {
+                handler.onRequest(new Request(this, address, id, body));
+                return;
+            }
+            bytes = Arrays.copyOfRange(bytes, 8, bytes.length); //没有请求处理器，当作普通消息
+        } else if (correlation != 0) {
+            return; //不合法的请求或回复
+        }
+        RDatagram result = new RDatagram(ByteBuffer.wrap(bytes));
+        result.address = address;
+        if (receiveListener != null) {
+            receiveListener.onReceived(result);
+        }
+    }
 
     /**
-     * 外层map的key为本地数据id，value为数据包map。里层数据包map的key为序列号，value为数据包
+     * 某个包已发送sendTimes次后的重传超时(ns)，由对端的RTT估计得出，并以重试时间间隔为上下限。
+     * 不知道接收方的延迟确认设置，按本端的设置估计
      */
-    private final Map<Long, Map<Integer, RDatagram>> sendWindow;
+    private long retransmitTimeout(Peer peer, int sendTimes) {
+        long max = TimeUnit.MILLISECONDS.toNanos(retryIntervalMillis);
+        long min = Math.min(TimeUnit.MILLISECONDS.toNanos(minRetryIntervalMillis), max);
+        return peer.rtt.timeout(sendTimes, min, max, TimeUnit.MILLISECONDS.toNanos(ackDelayMillis));
+    }
 
     /**
-     * 允许同时接收来自多个地址的数据。
-     * 最外层key是接收方数据id。里层key是序列号
+     * 重传超时未确认的数据包，超过重试次数仍未确认则发送失败。
+     * 之后在时间轮上安排下一次检查，时间为在途的包中最早超时的时间。新包由{@link #transmitNew(Peer)}调度发送。
+     *
+     * @param send 发送信息
      */
-    private final Map<Long, Map<Integer, RDatagram>> receiveWindow;
+    private void retransmit(Send send) {
+        Peer peer = send.peer;
+        send.timer = null;
+        if (send.finished || (!send.single && peer.sessionState != Peer.OPEN)) return;
+        PacketWindow window = send.window;
+        long now = clock.nanoTime();
+        long next = Long.MAX_VALUE; //距离下一个在途的包超时的时间
+        for (int i = window.base(), end = window.end(); i < end; i++) {
+            RDatagram rDatagram = window.get(i);
+            if (rDatagram == null) continue; //已被SACK确认
+            long remaining = rDatagram.lastSendTime + retransmitTimeout(peer, rDatagram.sendTimes) - now;
+            if (remaining > 0) {
+                next = Math.min(next, remaining);
+                continue;
+            }
+            if (rDatagram.sendTimes >= send.maxSends) {
+                //超过可靠性策略的重传次数，放弃
+                abandon(send);
+                return;
+            }
+            if (rDatagram.sendTimes >= retryTime) {
+                //超时，发送失败
+                fail(send);
+                return;
+            }
+            peer.window.onLoss(rDatagram.lastSendTime, now);
+            rDatagram.sendTimes++;
+            rDatagram.lastSendTime = now;
+            next = Math.min(next, retransmitTimeout(peer, rDatagram.sendTimes));
+            metrics.retransmissions.increment();
+            onTransmit(peer, rDatagram.data.remaining());
+            sendDatagram(peer.loop.transport, rDatagram);
+        }
+        if (next != Long.MAX_VALUE)
+            send.timer = peer.loop.timer.newTimeout(() -> retransmit(send), next, TimeUnit.NANOSECONDS);
+    }
 
     /**
-     * 接收监听器
+     * 从数据来源生成并发送下一个新包，没有重传定时器时安排一个
+     *
+     * @return 读取数据失败（发送随之失败）则返回false
      */
-    private ReceiveListener receiveListener;
-
-    private final ExecutorService responseTask;
-    private final ExecutorService ackTask;
-    private final ExecutorService receiveTask;
-    private final ExecutorService finalTask;
-    private final ExecutorService callbackTask;
-
-    private final ScheduledExecutorService connectionTimer;
-    private final Map<Long, ScheduledExecutorService> sendTimers;
-
-
-    private int retryTime = 15; //重试次数
-    private long retryIntervalMillis = 200; //重试时间间隔，毫秒
-
-    private RDatagramChannel(int port) {
+    private boolean sendNext(Send send) {
+        Peer peer = send.peer;
+        int index = send.built;
+        RDatagram rDatagram;
         try {
-            channel = DatagramChannel.open();
-            channel.bind(new InetSocketAddress(port));
-            channel.configureBlocking(false);
+            rDatagram = nextPacket(send);
         } catch (IOException e) {
             e.printStackTrace();
+            fail(send);
+            return false;
         }
-        connectionRequests = new ConcurrentHashMap<>();
-        connections = new HashMap<>();
-        sends = new HashMap<>();
-        receives = new HashMap<>();
-        sendTasks = new HashMap<>();
-        sendWindow = new HashMap<>();
-        receiveWindow = new ConcurrentHashMap<>();
-        responseTask = Executors.newCachedThreadPool();
-        ackTask = Executors.newCachedThreadPool();
-        receiveTask = Executors.newCachedThreadPool();
-        finalTask = Executors.newCachedThreadPool();
-        callbackTask = Executors.newCachedThreadPool();
-        connectionTimer = new ScheduledThreadPoolExecutor(1);
-        sendTimers = new HashMap<>();
-        retryConnect();
-        listen();
+        send.window.put(index, rDatagram);
+        peer.window.onSend();
+        send.inFlight++;
+        rDatagram.sendTimes = 1;
+        rDatagram.lastSendTime = clock.nanoTime();
+        metrics.dataPacketsSent.increment();
+        onTransmit(peer, rDatagram.data.remaining());
+        sendDatagram(peer.loop.transport, rDatagram);
+        if (send.fec != null) sendParity(send, index, rDatagram);
+        if (send.timer == null)
+            send.timer = peer.loop.timer.newTimeout(() -> retransmit(send), retransmitTimeout(peer, 1), TimeUnit.NANOSECONDS);
+        return true;
     }
 
     /**
-     * 在指定端口开启RUDP传输通道
-     *
-     * @param port 本地端口号
+     * 把新发出的数据包累积到所在的块，块满或是消息的最后一个包时发出校验包。校验包不重传，也不占拥塞窗口
      */
-    public static RDatagramChannel open(int port) {
-        return new RDatagramChannel(port);
+    private void sendParity(Send send, int index, RDatagram rDatagram) {
+        Peer peer = send.peer;
+        FecBlock block = send.fec;
+        int k = peer.sessionFec;
+        if (index % k == 0) block.reset(index);
+        block.add(rDatagram.getDataView());
+        boolean last = index == send.totalPackages - 1;
+        int count = index - block.start + 1;
+        if (count < k && !last) return;
+        int flags = count | (last ? FecBlock.LAST : 0);
+        ByteBuffer parity = block.parityPacket(send.sendId, peer.remoteSessionId, flags);
+        onTransmit(peer, parity.remaining());
+        send(peer.loop.transport, parity, peer.address);
     }
 
-    public void close() {
+    /**
+     * 从数据来源读取下一个数据包
+     */
+    private RDatagram nextPacket(Send send) throws IOException {
+        long offset = (long) send.built * send.segmentSize;
+        int length = (int) Math.min(send.segmentSize, send.source.length() - offset);
+        int seq = send.built;
+        RDatagram rDatagram = send.single
+                ? new RDatagram(send.sendId, 0, seq, RDatagram.TYPE_SINGLE, send.source.read(offset, length))
+                : new RDatagram(send.sendId, send.peer.remoteSessionId, seq, RDatagram.TYPE_DATA, send.source.read(offset, length));
+        byte flags = send.task.reliability.isOrdered() ? RDatagram.FLAG_ORDERED : 0;
+        if (send.original != null) flags |= RDatagram.FLAG_COMPRESSED;
+        flags |= send.task.flags;
+        if (seq == send.totalPackages - 1) flags |= RDatagram.FLAG_LAST;
+        rDatagram.setFlags(flags);
+        rDatagram.address = send.peer.address;
+        send.built++;
+        return rDatagram;
+    }
+
+    private void sendDatagram(DatagramTransport transport, RDatagram rDatagram) {
+        send(transport, rDatagram.data, rDatagram.address);
+        rDatagram.data.flip();
+    }
+
+    private void send(DatagramTransport transport, ByteBuffer data, InetSocketAddress address) {
         try {
-            channel.close();
-        } catch (IOException e) {
+            int length = data.remaining();
+            while (data.hasRemaining()) {
+                transport.send(data, address);
+            }
+            metrics.packetsSent.increment();
+            metrics.bytesSent.add(length);
+        } catch (Exception e) {
+            if (closed) return; //关闭时传输已关闭
             e.printStackTrace();
+            metrics.errors.increment();
         }
-        responseTask.shutdown();
-        ackTask.shutdown();
-        finalTask.shutdown();
-        callbackTask.shutdown();
-        connectionTimer.shutdown();
-        for (ScheduledExecutorService executorService : sendTimers.values()) executorService.shutdown();
     }
 
-    public void setReceiveListener(ReceiveListener receiveListener) {
-        this.receiveListener = receiveListener;
+    /**
+     * 发送失败，释放占用的拥塞窗口并回调
+     */
+    private void fail(Send send) {
+        send.finished = true;
+        send.source.close();
+        send.peer.window.onRelease(send.inFlight);
+        (send.single ? send.peer.singles : send.peer.messages).remove(send.sendId);
+        if (send.timer != null) send.timer.cancel();
+        if (send.expiry != null) send.expiry.cancel();
+        metrics.messagesFailed.increment();
+        if (send.task.expired) metrics.messagesExpired.increment();
+        Runnable onFailed = send.task.fail();
+        if (onFailed != null)
+            callback(send.task, onFailed);
+        //腾出的窗口留给发往同一地址的其他传输
+        transmitNew(send.peer);
     }
 
     /**
-     * 发送数据，数据被分割成若干个小包，每个包约1KB，每个包默认重试15次，间隔200ms。
-     * 如果超过重试次数后，超时仍未收到ACK，则发送失败。
-     * 发送前首先需要发一个请求包，以征得接收方的同意，并且获取一些关键信息。
-     * 发送完成后需要发一个结束包，以告诉接收方进行整合。
-     * <p>
-     * 允许同时发送多个数据。
-     * 一次发送的数据不超过当前可用内存并且小于 2^31 Byte 即可。
-     *
-     * @return 发送任务对象，用于实时监控发送状态，并且提供回调方法。
+     * 接收方通告的窗口是否还允许多发一个包。在途的包为0时总是允许，这个包的确认会带来新的窗口
      */
-    public SendTask send(ByteBuffer data, InetSocketAddress address) {
-        byte[] bytes = data.array();
-        if (bytes.length <= 0) return null;
-        SendTask sendTask = connect(bytes, address);
-        sendTasks.put(sendTask.sendId, sendTask);
-        int seq = sendTask.initSeq;
-        //分包并加入发送窗口
-        Map<Integer, RDatagram> dataMap = new HashMap<>();
-        sendWindow.put(sendTask.sendId, dataMap);
-        for (int i = 0; i <= sendTask.totalPackages; i++) {
-            ++seq;
-            byte[] split = Util.subArray(bytes, i * 1024, (i + 1) * 1024);
-            if (split.length <= 0) break;
-            RDatagram d = new RDatagram(sendTask.sendId, 0, seq, RDatagram.TYPE_DATA, split); //receiveId在发送之前补充
-            d.address = address;
-            dataMap.put(seq, d);
-        }
-        return sendTask;
+    private static boolean receiverCanAccept(Peer peer) {
+        int inFlight = peer.window.inFlight();
+        return inFlight == 0 || inFlight < peer.receiveWindow;
     }
 
     /**
-     * 发起连接请求，并且重试retryTime次，每次间隔retryIntervalMillis毫秒。超过重试时间而未收到连接回应，则连接失败，即发送失败。
-     * Initialize and send a connection request, and retry for {@link this.retryTime} times with interval of {@link this.retryIntervalMillis} ms.
-     * If the retry time exceeds and no connection response is received, the connection fails and the send fails.
-     *
-     * @param address 接收方的地址 the receiver's address
-     * @return 发送任务 the send task
+     * 按可靠性策略放弃一个消息：不再发送，已经发出过数据包的会话消息通知接收方丢弃已收到的部分，然后以失败结束。
+     * 通知只发一次，丢失时接收方在消息空闲一段时间后同样会丢弃
      */
-    private SendTask connect(byte[] data, InetSocketAddress address) {
-        Random random = new Random();
-        long sendId = random.nextLong();
-        while (sendWindow.containsKey(sendId) || sendId == 0) sendId = random.nextLong();
-        int seq = random.nextInt();
-        while (seq == 0) seq = random.nextInt();
-        SendTask sendTask = new SendTask(sendId, data.length, seq);
-        byte[] d = Util.intToBytes(sendTask.totalPackages);
-        RDatagram connectRequest = new RDatagram(sendId, 0, seq, RDatagram.TYPE_CONNECT_REQUEST, d);
-        connectRequest.address = address;
-        connectionRequests.put(sendId, connectRequest);
-        try {
-            channel.send(connectRequest.data, address);
-        } catch (IOException e) {
-            e.printStackTrace();
+    private void abandon(Send send) {
+        if (send.finished) return;
+        Peer peer = send.peer;
+        send.task.expired = true;
+        peer.pending.remove(send);
+        if (!send.single && send.built > 0 && peer.sessionState == Peer.OPEN) {
+            ByteBuffer out = peer.loop.scratch;
+            out.clear();
+            Header.write(out, 0, RDatagram.HEADER_LENGTH, RDatagram.TYPE_FORWARD, send.sendId, peer.remoteSessionId);
+            out.limit(RDatagram.HEADER_LENGTH);
+            send(peer.loop.transport, out, peer.address);
         }
-        Send send = new Send(sendTask.sendId, sendTask.totalPackages);
-        sends.put(sendTask.sendId, send);
-        return sendTask;
+        fail(send);
     }
 
     /**
-     * 对接收到的数据包发送ack（DATA包以及FINAL包）
-     *
-     * @param rDatagram 接收到的DATA包或FINAL包
+     * 有序消息发送完成，放弃在它之前发出、尚未完成的有序消息，接收方反正会丢弃它们
      */
-    private synchronized void sendAck(RDatagram rDatagram) {
-        if (rDatagram.getType() != RDatagram.TYPE_DATA) return;
-        byte[] data = new byte[4];
-        System.arraycopy(Util.intToBytes(rDatagram.getTotalLength() - RDatagram.HEADER_LENGTH), 0, data, 0, 4);
-        RDatagram ack = new RDatagram(rDatagram.getSendId(), rDatagram.getReceiveId(), rDatagram.getSeq(), RDatagram.TYPE_ACK, data);
-        try {
-            channel.send(ack.data, rDatagram.address);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+    private void supersede(Send completed) {
+        Queue<Send> ordered = completed.peer.ordered;
+        Send send;
+        while ((send = ordered.poll()) != null && send != completed) abandon(send);
     }
 
-    private void listen() {
-        new Thread(() -> {
-            try {
-                Selector selector = Selector.open();
-                channel.register(selector, SelectionKey.OP_READ);
-                while (selector.select() > 0) {
-                    Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
-                    while (iterator.hasNext()) {
-                        SelectionKey next = iterator.next();
-                        if (next.isReadable()) {
-                            DatagramChannel datagramChannel = (DatagramChannel) next.channel();
-                            ByteBuffer allocate = ByteBuffer.allocate(1048); //每个包最大为1048字节
-                            allocate.clear();
-                            InetSocketAddress socketAddress = (InetSocketAddress) datagramChannel.receive(allocate);
-                            RDatagram rDatagram = new RDatagram(allocate);
-                            if (rDatagram.getSendId() == 0) return;
-                            rDatagram.address = socketAddress;
-                            byte type = rDatagram.getType();
-                            switch (type) {
-                                case RDatagram.TYPE_ACK:
-                                    doAck(rDatagram);
-                                    break;
-                                case RDatagram.TYPE_DATA:
-                                    doReceive(rDatagram);
-                                    break;
-                                case RDatagram.TYPE_CONNECT_REQUEST:
-                                    doResponse(rDatagram);
-                                    break;
-                                case RDatagram.TYPE_CONNECT_RESPONSE:
-                                    doSending(rDatagram);
-                            }
-                            allocate.clear();
-                        }
+    /**
+     * 拥塞窗口有空间时，继续生成、发送该对端的新包。发往同一地址的所有传输共享拥塞窗口，每个包都重新挑选由哪个传输发送：
+     * 优先级高的先发；优先级相同的，剩余包数少的先发（SRPT），因此控制消息、单包消息不会排在大块传输后面；都相同则按开始发送的顺序。
+     * 已生成全部数据包或已结束的传输在这里移出队列。
+     * <p>除交互流量外，还受发送节奏和带宽限制，不能立即发送时在时间轮上安排下一次
+     */
+    private void transmitNew(Peer peer) {
+        if (peer.transmitting || closed) return; //生成数据包失败时fail会再次调用
+        peer.transmitting = true;
+        List<Send> capped = null; //在途包数已达到发送窗口上限的传输，暂时移出
+        try {
+            Send send;
+            while (peer.window.canSend() && receiverCanAccept(peer) && (send = peer.unsent.peek()) != null) {
+                if (send.finished || send.built >= send.totalPackages) {
+                    peer.unsent.poll();
+                    continue;
+                }
+                if (send.inFlight >= maxSendWindow) {
+                    if (capped == null) capped = new ArrayList<>();
+                    capped.add(peer.unsent.poll());
+                    continue;
+                }
+                if (send.priority < interactivePriority) {
+                    long wait = throttle(peer);
+                    if (wait > 0) {
+                        schedulePacing(peer, wait);
+                        break;
                     }
-                    iterator.remove();
                 }
-            } catch (IOException e) {
-                e.printStackTrace();
+                peer.unsent.poll();
+                if (sendNext(send) && send.built < send.totalPackages) peer.unsent.add(send);
             }
-        }).start();
+        } finally {
+            if (capped != null) peer.unsent.addAll(capped);
+            peer.transmitting = false;
+        }
     }
 
     /**
-     * 处理连接请求，发送连接回应。这个回应不需要重试，不需要管对方是否收到。
-     *
-     * @param connectRequest 连接请求
+     * 开启或关闭发送节奏控制，默认开启。开启后发往每个地址的新包按 平滑RTT/拥塞窗口 的间隔均匀发出，
+     * 而不是窗口一打开就连续发出，减少浅缓冲的交换机因突发而丢包。慢启动阶段按2倍、之后按1.25倍窗口的速率发送，窗口仍能正常增长。
+     * 时间轮的刻度为1ms，每次最多发出约{@link #PACING_QUANTUM}内的包；RTT很小时（如本机）间隔几乎为0，不影响吞吐。
+     * 还没有RTT样本时不控制节奏
      */
-    private void doResponse(RDatagram connectRequest) {
-        responseTask.execute(() -> {
-            long sendId = connectRequest.getSendId();
-            int seq = connectRequest.getSeq();
-            int totalPackages = Util.bytesToInt(Util.subArray(connectRequest.getData(), 0, 4));
-            InetSocketAddress address = connectRequest.address;
-            Connection connection = new Connection(address, sendId);
-            long receiveId;
-            if (!connections.containsKey(connection)) {
-                Random random = new Random();
-                receiveId = random.nextLong();
-                while (receiveWindow.containsKey(receiveId) || receiveId == 0) receiveId = random.nextLong();
-                connections.put(connection, receiveId);
-                Map<Integer, RDatagram> receiveMap = new HashMap<>();
-                receiveWindow.put(receiveId, receiveMap);
-                Receive receive = new Receive(receiveId, seq + 1, totalPackages);
-                receives.put(receiveId, receive);
-            } else receiveId = connections.get(connection);
-            RDatagram connectResponse = new RDatagram(sendId, receiveId, connectRequest.getSeq(), RDatagram.TYPE_CONNECT_RESPONSE, null);
-            try {
-                channel.send(connectResponse.data, address);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        });
+    public RDatagramChannel setPacing(boolean pacing) {
+        this.pacing = pacing;
+        return this;
     }
 
     /**
-     * 发送端开始发送数据（在连接成功后）
+     * 设置发送带宽限制（字节/秒），用令牌桶实现，允许约{@value #BANDWIDTH_BURST_MILLIS}ms的突发，0为不限，默认都不限。
+     * 计入的是所有数据包，包括重传和校验包，不包括确认、握手等控制包。受限的传输在令牌不足时等待，与拥塞窗口同时生效，取更严格的一方。
+     * <p>高优先级的交互流量可以不受限，见{@link #setInteractivePriority(int)}。
      *
-     * @param connectResponse 从接收方收到的连接回应，给出了数据id
+     * @param channelBytesPerSecond 整个信道（所有地址合计）的限制
+     * @param peerBytesPerSecond    发往每个地址的限制
      */
-    private void doSending(RDatagram connectResponse) {
-        long sendId = connectResponse.getSendId();
-        if (sendTimers.containsKey(sendId)) return;
-        long receiveId = connectResponse.getReceiveId();
-        connectionRequests.remove(sendId);
-        SendTask sendTask = sendTasks.get(sendId);
-        if (sendTask == null) return;
-        if (sendTask.onConnected != null && !sendTask.connected) {
-            sendTask.connected = true;
-            callbackTask.execute(sendTask.onConnected);
-        }
-        Map<Integer, RDatagram> dataMap = sendWindow.get(sendId);
-        if (dataMap == null) return;
-        for (RDatagram rDatagram : dataMap.values())
-            rDatagram.setReceiveId(receiveId);
-        startTiming(sendId);
+    public RDatagramChannel setBandwidthLimit(long channelBytesPerSecond, long peerBytesPerSecond) {
+        if (channelBytesPerSecond < 0 || peerBytesPerSecond < 0) return this;
+        this.bandwidthLimit = channelBytesPerSecond == 0 ? null
+                : new TokenBucket(channelBytesPerSecond, bandwidthBurst(channelBytesPerSecond), clock.nanoTime());
+        this.peerBandwidthLimit = peerBytesPerSecond;
+        return this;
     }
 
     /**
-     * 接收端接收数据
+     * 设置交互流量的优先级，优先级不小于它的消息（见{@link #send(ByteBuffer, InetSocketAddress, int)}）不受发送节奏和带宽限制，立即发出，默认没有。
+     * 它们发出的字节仍然扣除令牌，占用的带宽从受限的流量中让出。把带宽限制设得比链路带宽低一些，
+     * 再给交互消息较高的优先级，即可为交互流量预留带宽，大块传输不会占满上行链路
      */
-    private void doReceive(RDatagram rDatagram) {
-        receiveTask.execute(() -> {
-            long receiveId = rDatagram.getReceiveId();
-            Receive receive = receives.get(receiveId);
-            int seq = rDatagram.getSeq();
-            if (!receive.seqValid(seq)) return;
-            Map<Integer, RDatagram> receiveMap;
-            synchronized (receiveWindow) {
-                receiveMap = receiveWindow.computeIfAbsent(receiveId, k -> new ConcurrentHashMap<>());
-            }
-            if (receiveMap.containsKey(seq)) return;
-            receiveMap.put(rDatagram.getSeq(), rDatagram);
-            int r = receive.receivedPackages.incrementAndGet();
-            //todo:解决并发问题
-            if (r >= receive.totalPackages)
-                doFinal(receive, rDatagram.address);
-            sendAck(rDatagram);
-        });
+    public RDatagramChannel setInteractivePriority(int priority) {
+        this.interactivePriority = priority;
+        return this;
+    }
 
+    private long bandwidthBurst(long rate) {
+        return Math.max(rate * BANDWIDTH_BURST_MILLIS / 1000, 2L * (RDatagram.HEADER_LENGTH + segmentSize));
     }
 
     /**
-     * 发送端确认某个数据包已成功发送，从发送窗口删除
-     * Confirm that a packet has been successfully sent and delete it from the sending window.
-     *
-     * @param ack 确认包。其序列号与对应数据包相等
+     * 按发送节奏和带宽限制，距离可以再发一个包还要等待的时间(ns)，可以立即发送则返回0
      */
-    private void doAck(RDatagram ack) {
-        ackTask.execute(() -> {
-            long sendId = ack.getSendId();
-            if (sendId == 0) return;
-            SendTask task = sendTasks.get(sendId);
-            Send send = sends.get(sendId);
-            Map<Integer, RDatagram> dataMap = sendWindow.get(sendId);
-            if (dataMap == null) return;
-            dataMap.remove(ack.getSeq());
-            byte[] data = ack.getData();
-            int len = Util.bytesToInt(Util.subArray(data, 0, 4));
-
-            task.sent += len;
-            if (task.onSending != null)
-                callbackTask.execute(task.onSending);
-            send.sentTotal++;
-            if (send.sentTotal >= send.totalPackages) {
-                if (task.onCompleted != null)
-                    callbackTask.execute(task.onCompleted);
-            }
-        });
-
+    private long throttle(Peer peer) {
+        long now = clock.nanoTime();
+        long wait = pacing ? peer.paceNext - now : 0;
+        TokenBucket bucket = peerBucket(peer, now);
+        if (bucket != null) wait = Math.max(wait, bucket.delay(now));
+        TokenBucket channel = bandwidthLimit;
+        if (channel != null) wait = Math.max(wait, channel.delay(now));
+        return Math.max(wait, 0);
     }
 
     /**
-     * 接收端处理final数据包，对接收到的数据进行收尾工作
+     * 发出了一个数据包（新包、重传或校验包），推后下一个包的发送时间并扣除令牌
+     *
+     * @param bytes 包的字节数，包括包头
      */
-    private void doFinal(Receive receive, InetSocketAddress finalAddr) {
-        finalTask.execute(() -> {
-            int total = receive.totalPackages;
-            int seq = receive.initSeq; //第一个数据包的序列号
-            long receiveId = receive.receiveId;
-            Map<Integer, RDatagram> receiveMap = receiveWindow.get(receiveId);
-            int len = 0;
-            for (RDatagram rDatagram : receiveMap.values())
-                len += (rDatagram.getTotalLength() - RDatagram.HEADER_LENGTH);
-            byte[] bytes = new byte[len];
-            for (int i = 0; i < total; i++) {
-                RDatagram rDatagram = receiveMap.get(seq++);
-                if (rDatagram != null) {
-                    byte[] split = rDatagram.getData();
-                    System.arraycopy(split, 0, bytes, i * 1024, split.length);
-                }
-            }
-
-            ByteBuffer byteBuffer = ByteBuffer.wrap(bytes);
-            RDatagram result = new RDatagram(byteBuffer);
-            result.address = finalAddr;
-            if (receiveListener != null) {
-                receiveListener.onReceived(result);
-            }
-
-            receiveMap.clear();
-            receiveWindow.remove(receiveId);
-        });
-
+    private void onTransmit(Peer peer, int bytes) {
+        long now = clock.nanoTime();
+        if (pacing && peer.rtt.hasSample()) {
+            //慢启动阶段窗口每个RTT翻倍，发送速率须跟上
+            double gain = peer.window.inSlowStart() ? 2 : 1.25;
+            long interval = (long) (peer.rtt.srtt() / (peer.window.size() * gain));
+            peer.paceNext = Math.max(peer.paceNext, now - PACING_QUANTUM) + interval;
+        }
+        TokenBucket bucket = peerBucket(peer, now);
+        if (bucket != null) bucket.consume(bytes, now);
+        TokenBucket channel = bandwidthLimit;
+        if (channel != null) channel.consume(bytes, now);
     }
 
     /**
-     * 重复发送连接请求
+     * 发往这个地址的带宽限制，限制改变时重新建立令牌桶，不限则返回null
      */
-    private void retryConnect() {
-        connectionTimer.scheduleAtFixedRate(() -> {
-            if (connectionRequests.isEmpty()) return;
-            for (Map.Entry<Long, RDatagram> entry : connectionRequests.entrySet()) {
-                RDatagram connRequest = entry.getValue();
-                long sendId = entry.getKey();
-                if (connRequest.sendTimes >= retryTime) {
-                    connectionRequests.remove(sendId);
-                    SendTask sendTask = sendTasks.get(sendId);
-                    if (sendTask != null && sendTask.onFailed != null)
-                        callbackTask.execute(sendTask.onFailed);
-                    sendTasks.remove(sendId);
-                    break;
-                }
-                try {
-                    while (connRequest.data.hasRemaining())
-                        channel.send(connRequest.data, connRequest.address);
-                    connRequest.data.flip();
-                    connRequest.sendTimes++;
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }, 0, retryIntervalMillis, TimeUnit.MILLISECONDS);
+    private TokenBucket peerBucket(Peer peer, long now) {
+        long rate = peerBandwidthLimit;
+        if (rate <= 0) return peer.bucket = null;
+        if (peer.bucket == null || peer.bucket.rate() != rate) peer.bucket = new TokenBucket(rate, bandwidthBurst(rate), now);
+        return peer.bucket;
     }
 
     /**
-     * 开始发送指定本地id的数据包
-     *
-     * @param sendId 本地数据id
+     * 等待wait纳秒之后继续发送，已经在等待则不重复安排
      */
-    private void startTiming(long sendId) {
-        Map<Integer, RDatagram> datagramMap = sendWindow.get(sendId);
-        if (datagramMap == null) return;
-        ScheduledExecutorService timer = new ScheduledThreadPoolExecutor(1);
-        sendTimers.put(sendId, timer);
-        timer.scheduleAtFixedRate(() -> {
-            if (datagramMap.isEmpty()) return;
-            for (RDatagram rDatagram : datagramMap.values()) {
-                if (rDatagram.sendTimes >= retryTime) {
-                    //超时，发送失败
-                    SendTask sendTask = sendTasks.get(sendId);
-                    if (sendTask != null && sendTask.onFailed != null)
-                        callbackTask.execute(sendTask.onFailed);
-                    sendTasks.remove(sendId);
-                    timer.shutdownNow();
-                }
-                rDatagram.sendTimes++;
-                try {
-                    while (rDatagram.data.hasRemaining()) {
-                        channel.send(rDatagram.data, rDatagram.address);
-                    }
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
-                rDatagram.data.flip();
-            }
-
-        }, 0, retryIntervalMillis, TimeUnit.MILLISECONDS);
+    private void schedulePacing(Peer peer, long wait) {
+        if (peer.paceTimer != null) return;
+        peer.paceTimer = peer.loop.timer.newTimeout(() -> {
+            peer.paceTimer = null;
+            transmitNew(peer);
+        }, wait, TimeUnit.NANOSECONDS);
     }
 
     /**
@@ -468,7 +2332,8 @@ public class RDatagramChannel {
     }
 
     /**
-     * 设置每次重试时间(ms)，默认200ms。一旦超过 重试次数*重试时间 仍未收到ACK，则发送失败。
+     * 设置每次重试时间的上限(ms)，默认200ms。实际的重试时间由测得的RTT决定，每重试一次翻倍，但不超过此上限。
+     * 因此一旦超过 重试次数*重试时间 仍未收到ACK，则一定发送失败。
      */
     public RDatagramChannel setRetryIntervalMillis(long retryIntervalMillis) {
         if (retryIntervalMillis < 0) return this;
@@ -476,10 +2341,173 @@ public class RDatagramChannel {
         return this;
     }
 
+    /**
+     * 设置每次重试时间的下限(ms)，默认10ms。RTT很小时（如局域网）避免过早重传。
+     * 每次计算重传超时时读取，进行中的传输也随即按新的下限重传。
+     */
+    public RDatagramChannel setMinRetryIntervalMillis(long minRetryIntervalMillis) {
+        if (minRetryIntervalMillis <= 0) return this;
+        this.minRetryIntervalMillis = minRetryIntervalMillis;
+        return this;
+    }
+
+    /**
+     * 设置延迟确认：每收到everyPackets个包至少确认一次，否则最多延迟delayMillis毫秒再确认。默认8个包、5ms。
+     * 延迟时间应小于重试时间的下限，否则会引起不必要的重传。
+     */
+    public RDatagramChannel setAckDelay(int everyPackets, long delayMillis) {
+        if (everyPackets <= 0 || delayMillis < 0) return this;
+        this.ackEvery = everyPackets;
+        this.ackDelayMillis = delayMillis;
+        return this;
+    }
+
+    /**
+     * 设置会话保活：与某个地址的会话没有消息在发送时，每隔intervalMillis毫秒发送一个保活包，默认15秒。
+     * 应明显小于对端的会话空闲超时，见{@link #setSessionIdleTimeout(long)}；NAT之后的发送方还应小于NAT映射的超时。
+     */
+    public RDatagramChannel setKeepAlive(long intervalMillis) {
+        if (intervalMillis <= 0) return this;
+        this.keepAliveMillis = intervalMillis;
+        return this;
+    }
+
+    /**
+     * 设置会话空闲超时(ms)，默认60秒。发送方的会话超过这么久没有发送消息则关闭，之后的消息重新握手；
+     * 接收方的会话超过这么久没有收到任何包（包括保活包）则过期，丢弃其中未完成的消息。
+     */
+    public RDatagramChannel setSessionIdleTimeout(long timeoutMillis) {
+        if (timeoutMillis <= 0) return this;
+        this.sessionIdleTimeoutMillis = timeoutMillis;
+        return this;
+    }
+
+    /**
+     * 设置拥塞控制算法，默认CUBIC。只对之后新出现的对端地址生效。
+     * 设为{@link CongestionControl#NONE}则每次传输只受最大发送窗口限制。
+     */
+    public RDatagramChannel setCongestionControl(CongestionControl congestionControl) {
+        if (congestionControl == null) return this;
+        this.congestionControl = congestionControl;
+        return this;
+    }
+
+    /**
+     * 设置每次传输最多同时在途（已发出未确认）的数据包数，默认1024。同时也是拥塞窗口的上限。
+     */
+    public RDatagramChannel setMaxSendWindow(int maxSendWindow) {
+        if (maxSendWindow <= 0) return this;
+        this.maxSendWindow = maxSendWindow;
+        return this;
+    }
+
+    /**
+     * 绑定在端口上的一个信道及其事件循环。以下状态只由事件循环线程访问：
+     * 这个信道收到的消息的接收端状态，以及属于这个循环的对端的发送端状态
+     */
+    private static final class Shard {
+        public Shard(int index, DatagramTransport transport, Clock clock) {
+            this.index = index;
+            this.transport = transport;
+            this.timer = new HashedWheelTimer(1, TimeUnit.MILLISECONDS, 512, clock);
+        }
+
+        final int index;
+        final DatagramTransport transport; //打开失败则为null
+        Thread thread; //事件循环线程
+
+        /**
+         * 连接请求重试、数据包重传、延迟确认、路径MTU探测
+         */
+        final HashedWheelTimer timer;
+
+        /**
+         * 其他线程提交的任务，如用户发起的发送
+         */
+        final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        /**
+         * 由其他信道收到、属于本循环的对端的包
+         */
+        final Queue<RDatagram> inbox = new ArrayBlockingQueue<>(INBOX_SIZE);
+
+        final AtomicBoolean wakenUp = new AtomicBoolean();
+
+        /**
+         * 使用虚拟时钟时，时间推进后唤醒事件循环
+         */
+        final Runnable onTick = this::tick;
+
+        /**
+         * 回应和ACK的发送缓冲区，足够容纳带满SACK区间的ACK
+         */
+        final ByteBuffer scratch = ByteBuffer.allocateDirect(RDatagram.HEADER_LENGTH + 6 + Receive.MAX_SACK_RANGES * 8 + 4);
+
+        /**
+         * 接收端的连接池，key为连接信息，value为会话
+         */
+        final Map<Connection, Session> connections = new HashMap<>();
+
+        /**
+         * 接收端的会话，key为本端分配的会话id
+         */
+        final LongHashMap<Session> sessions = new LongHashMap<>();
+
+        long receiveCount = 0; //收到过的消息数，用于分配接收id
+
+        /**
+         * 最近收到的单包消息，用于去重
+         */
+        final DedupeCache<Connection> singles = new DedupeCache<>(SINGLE_DEDUPE_SIZE);
+
+        /**
+         * 信道关闭后事件循环已经结束了剩下的发送，之后提交的任务由提交的线程执行
+         */
+        volatile boolean terminated = false;
+
+        /**
+         * 事件循环结束后执行提交的任务，见{@link RDatagramChannel#drain(Shard)}
+         */
+        Runnable drain;
+        final AtomicBoolean draining = new AtomicBoolean();
+
+        /**
+         * 在事件循环上执行任务，事件循环已经结束则在当前线程上执行
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            if (terminated) drain.run();
+            else wakeup();
+        }
+
+        /**
+         * 转交一个包给事件循环
+         *
+         * @return 队列已满则返回false
+         */
+        boolean forward(RDatagram rDatagram) {
+            if (!inbox.offer(rDatagram)) return false;
+            wakeup();
+            return true;
+        }
+
+        boolean hasTasks() {
+            return !tasks.isEmpty() || !inbox.isEmpty();
+        }
+
+        private void tick() {
+            wakenUp.set(true);
+            if (transport != null) transport.wakeup();
+        }
+
+        private void wakeup() {
+            if (Thread.currentThread() != thread && wakenUp.compareAndSet(false, true) && transport != null) transport.wakeup();
+        }
+    }
+
     /**
      * 连接单元，由接收方维持
-     * 一个连接由地址+发送id唯一确定。
-     * 一次发送可能有多个不同的连接，而一个连接只属于一次发送。
+     * 一个连接由地址+发送方的会话id唯一确定，对应一个会话。
      */
     private static final class Connection {
         public Connection(InetSocketAddress address, long sendId) {
@@ -492,7 +2520,7 @@ public class RDatagramChannel {
          */
         private final InetSocketAddress address;
         /**
-         * 发送id，即连接请求的id
+         * 发送方的会话id，即连接请求的发送id
          */
         private final long sendId;
 
@@ -512,44 +2540,215 @@ public class RDatagramChannel {
     }
 
     /**
-     * 发送信息
+     * 接收端的会话，与一个发送方的会话对应，只由所属信道的事件循环访问
+     */
+    private static final class Session {
+        public Session(Shard shard, Connection connection, long id, int segmentSize) {
+            this.shard = shard;
+            this.connection = connection;
+            this.id = id;
+            this.segmentSize = segmentSize;
+        }
+
+        final Shard shard; //收到连接请求的信道
+        final Connection connection;
+        final long id; //本端分配的会话id
+        final int segmentSize; //接受的分段大小，发送方的数据包不超过这个大小
+        final LongHashMap<Receive> receives = new LongHashMap<>(); //正在接收和刚完成的消息，key为消息id
+        long floor = 0; //小于这个id的新消息不再接受，见checkReceive
+        long ordered = 0; //最近交付的有序消息的id，更早的有序消息丢弃
+        int fec = 0; //发送方的前向纠错每块的数据包数，0为没有开启
+        final AtomicLong memory = new AtomicLong(); //已收到、监听器尚未处理完的数据字节数，回调线程也会修改
+        long lastActive; //最近收到包的时间(ns)
+    }
+
+    /**
+     * 发送信息，只由对端所属的事件循环访问
      */
     private static final class Send {
-        public Send(long sendId, int totalPackages) {
-            this.sendId = sendId;
-            this.totalPackages = totalPackages;
+        public Send(SendTask task, PacketSource source, Peer peer) {
+            this.task = task;
+            this.source = source;
+            this.peer = peer;
+            int retransmits = task.reliability.getMaxRetransmits();
+            this.maxSends = retransmits < 0 ? Integer.MAX_VALUE : retransmits + 1;
+            //数据包在发送时才生成，见transmit
+            this.window = new PacketWindow(64);
         }
 
-        long sendId;
+        final SendTask task;
+        long sendId; //消息id，开始发送时在会话中分配
         int sentTotal = 0; //已发送成功的数量
-        int totalPackages; //数据包总数
+        int totalPackages; //数据包总数，开始发送时确定
+        int segmentSize; //分段大小，开始发送时按会话和路径MTU探测结果确定
+        int built = 0; //已从数据来源生成的数据包数
+        final Peer peer; //接收方
+        PacketSource source; //待发送的数据，压缩时为压缩后的数据
+        PacketSource original; //压缩前的数据，接收方不支持压缩时改为发送它，没有压缩则为null
+        final PacketWindow window; //已发出未确认的数据包，下标为序列号
+        int inFlight = 0; //已发出但未确认的包数
+        boolean finished = false; //已完成或已失败
+        boolean single = false; //是否为单包消息，不经过会话
+        int priority; //优先级，开始发送时取自发送任务
+        int maxSends; //每个包最多发送的次数，超过则按可靠性策略放弃
+        HashedWheelTimer.Timeout expiry; //生存时间到期时放弃
+        FecBlock fec; //正在累积的校验包，没有开启前向纠错则为null
+        long order; //开始发送的顺序
+
+        /**
+         * 发送队列的顺序：优先级高的在前，其次剩余包数少的在前，最后按开始发送的顺序。
+         * 传输在队列中时这些值不变，生成数据包前先取出，之后再放回
+         */
+        static final Comparator<Send> SCHEDULE = (a, b) -> {
+            if (a.priority != b.priority) return Integer.compare(b.priority, a.priority);
+            int remainingA = a.totalPackages - a.built;
+            int remainingB = b.totalPackages - b.built;
+            if (remainingA != remainingB) return Integer.compare(remainingA, remainingB);
+            return Long.compare(a.order, b.order);
+        };
+        HashedWheelTimer.Timeout timer; //数据包重传的定时器
+    }
+
+    /**
+     * 对端信息，一个地址一个，由发往该地址的所有传输共享，同时也是发送端的会话。除地址和所属循环外只由所属的事件循环访问
+     */
+    private static final class Peer {
+        static final int CLOSED = 0; //没有会话
+        static final int CONNECTING = 1; //正在握手
+        static final int OPEN = 2; //会话已建立
+
+        public Peer(InetSocketAddress address, Shard loop, CongestionWindow window, long now) {
+            this.address = address;
+            this.loop = loop;
+            this.window = window;
+            this.paceNext = now;
+        }
+
+        final InetSocketAddress address;
+        final Shard loop; //所属的事件循环，发往该地址的包也从它的信道发出
+        final CongestionWindow window; //拥塞窗口
+        final RttEstimator rtt = new RttEstimator(); //往返时间估计
+        final LongHashMap<Send> messages = new LongHashMap<>(); //正在发送的传输，key为消息id
+        final LongHashMap<Send> singles = new LongHashMap<>(); //正在发送的单包消息，key为随机分配的消息id
+        final Queue<Send> unsent = new PriorityQueue<>(Send.SCHEDULE); //还有数据包没有生成的传输，见transmitNew
+        long scheduled = 0; //开始发送过的传输数，用于排序
+        boolean transmitting = false; //正在遍历unsent
+        final Queue<Send> pending = new ArrayDeque<>(); //等待握手的传输
+        final Queue<Send> ordered = new ArrayDeque<>(); //尚未完成的有序消息，按提交顺序，见supersede
+        int sessionState = CLOSED;
+        long sessionId; //本端的会话id
+        long remoteSessionId; //接收方的会话id，会话建立后才知道
+        int sessionSegmentSize; //接收方接受的分段大小
+        int sessionFec; //会话的前向纠错每块的数据包数，0为没有开启
+        boolean sessionCompression; //接收方是否接受压缩的消息
+        int receiveWindow = Integer.MAX_VALUE; //接收方通告的还能接收的数据包数
+        long nextMessageId; //上一个消息的id，消息id在会话中从1开始递增
+        long lastActive; //最近提交消息或收到确认的时间(ns)
+        RDatagram connectRequest; //尚未得到回应的连接请求
+        HashedWheelTimer.Timeout sessionTimer; //连接请求重试或保活
+        int segmentSize = 0; //路径MTU探测得出的分段大小，0为未探测
+        PathMtuProbe probe; //正在进行的探测
+        long probeId; //探测包的发送id
+        HashedWheelTimer.Timeout probeTimer; //探测包超时
+        long paceNext; //按发送节奏，下一个包最早的发送时间(ns)
+        TokenBucket bucket; //发往这个地址的带宽限制，不限则为null
+        HashedWheelTimer.Timeout paceTimer; //等待发送节奏或带宽限制后继续发送
+    }
+
+    /**
+     * 等待回复的请求
+     */
+    private static final class PendingRequest {
+        PendingRequest(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        final InetSocketAddress address; //请求发往的地址，只接受它的回复
+        final CompletableFuture<ByteBuffer> future = new CompletableFuture<>();
+        HashedWheelTimer.Timeout timeout; //等待回复的超时，只在事件循环上访问
     }
 
     /**
-     * 接收信息
+     * 一个消息的接收信息，只由所属信道的事件循环访问
      */
     private static final class Receive {
-        public Receive(long receiveId, int initSeq, int totalPackages) {
+        /**
+         * 一个ACK最多携带的SACK区间数
+         */
+        static final int MAX_SACK_RANGES = 16;
+        /**
+         * 尚不知道小包总数时，最多接受累计确认号之后多少个包，超过的丢弃，由发送方重传
+         */
+        static final int MAX_SPAN = 1 << 16;
+
+        public Receive(Session session, long messageId, long receiveId) {
+            this.session = session;
+            this.messageId = messageId;
             this.receiveId = receiveId;
-            this.initSeq = initSeq;
-            this.totalPackages = totalPackages;
         }
 
-        long receiveId;
-        int initSeq; //数据包的初始序列号
-        int totalPackages; //数据包总数
-        volatile AtomicInteger receivedPackages = new AtomicInteger(0); //已接收数据包总数
+        final Session session; //所属的会话
+        final long messageId; //消息id
+        final long receiveId; //交给监听器的接收id，在本端唯一
+        int totalPackages = -1; //数据包总数，收到最后一个包之前不知道
+        int segmentSize = 0; //分段大小，由第一个收到的非最后一个包得知
+        int receivedPackages = 0; //已接收数据包总数
+        final BitSet received = new BitSet(); //已收到的包，下标为序列号
+        PacketWindow window = new PacketWindow(64); //已收到未交付的包，下标同上。整合时交给回调线程，之后为null
+        int cumulative = 0; //从0开始连续收到的包数
+        int unacked = 0; //收到后尚未确认的包数
+        boolean ackScheduled = false; //是否已安排延迟确认
+        int lastSeq; //最近收到的包的序列号
+        long lastActive; //最近收到包的时间(ns)
+        InetSocketAddress address; //最近收到的包的地址
+        boolean streaming = false; //是否流式接收
+        boolean ordered = false; //是否为有序消息
+        boolean compressed = false; //是否为压缩的消息
+        byte correlation = 0; //请求或回复的标志位，普通消息为0
+        boolean rejected = false; //超过内存预算而被拒绝，之后收到的包都回复拒绝
+        Compression.StreamInflater inflater; //流式接收压缩的消息时的解压器，只在回调线程上使用
+        LongHashMap<FecBlock> blocks; //前向纠错中尚未收齐的块，key为块内第一个包的下标+1
+        int delivered = 0; //已交付的包数
+        long deliveredBytes = 0; //已交付的字节数
 
         /**
-         * 判断序列号是否合法
+         * 把ACK写入out，position为0，limit为ACK的长度。内容为：累计确认号（4字节，此序列号之前的包都已收到），SACK区间数（2字节），
+         * 之后每个区间为起始序列号（4字节，包含）和结束序列号（4字节，不包含）
          */
-        public boolean seqValid(int seq) {
-            int endSeq = initSeq + totalPackages - 1;
-            if (endSeq <= initSeq) {
-                return seq >= initSeq || seq <= endSeq;
-            } else {
-                return seq >= initSeq && seq <= endSeq;
+        void writeAck(ByteBuffer out, int window) {
+            out.clear();
+            int n = 0;
+            int from = received.nextSetBit(cumulative);
+            int offset = RDatagram.HEADER_LENGTH + 6;
+            while (from >= 0 && n < MAX_SACK_RANGES) {
+                int to = received.nextClearBit(from);
+                out.putInt(offset, from);
+                out.putInt(offset + 4, to);
+                offset += 8;
+                n++;
+                from = received.nextSetBit(to);
             }
+            out.putInt(offset, window);
+            offset += 4;
+            Header.write(out, lastSeq, offset, RDatagram.TYPE_ACK, messageId, session.id);
+            out.putInt(RDatagram.HEADER_LENGTH, cumulative);
+            out.putShort(RDatagram.HEADER_LENGTH + 4, (short) n);
+            out.limit(offset);
+        }
+
+        /**
+         * 判断序列号是否合法：知道小包总数时不超过总数，否则不超过累计确认号之后{@link #MAX_SPAN}个包
+         */
+        boolean indexValid(int index) {
+            if (index < 0) return false;
+            return totalPackages >= 0 ? index < totalPackages : index - cumulative < MAX_SPAN;
+        }
+
+        /**
+         * 判断带最后一个包标志的序列号是否合法，不能比已收到的包小
+         */
+        boolean lastValid(int index) {
+            return totalPackages >= 0 ? index == totalPackages - 1 : received.length() <= index + 1;
         }
     }
 
@@ -0,0 +1,93 @@
+package cn.xiaofei.rudp;
+
+/**
+ * 通过JMX查看{@link RDatagramChannel}的指标，见{@link RDatagramChannel#registerMBean()}。
+ * 计数从信道开启起累计，延迟单位为微秒
+ */
+public interface RDatagramChannelMXBean {
+    long getPacketsSent();
+
+    long getBytesSent();
+
+    long getPacketsReceived();
+
+    long getBytesReceived();
+
+    /**
+     * 超时重传的数据包数
+     */
+    long getRetransmissions();
+
+    /**
+     * 重传数与首次发送的数据包数之比
+     */
+    double getRetransmitRatio();
+
+    /**
+     * 收到的重复数据包数，包括重复的单包消息
+     */
+    long getDuplicates();
+
+    /**
+     * 超过接收内存预算而丢弃的数据包数
+     */
+    long getMemoryDrops();
+
+    /**
+     * 由前向纠错恢复的数据包数
+     */
+    long getFecRecovered();
+
+    long getConnectFailures();
+
+    /**
+     * 收到的会话重置数
+     */
+    long getResets();
+
+    long getMessagesSent();
+
+    long getMessagesFailed();
+
+    /**
+     * 按可靠性策略放弃的消息数，也计入{@link #getMessagesFailed()}
+     */
+    long getMessagesExpired();
+
+    long getMessagesReceived();
+
+    /**
+     * 被捕获并打印的异常数
+     */
+    long getErrors();
+
+    /**
+     * 接收端占用的内存（字节）
+     */
+    long getReceiveMemory();
+
+    /**
+     * 有发送状态的对端数
+     */
+    int getPeerCount();
+
+    /**
+     * 所有对端在途的数据包数之和
+     */
+    int getPacketsInFlight();
+
+    /**
+     * 所有对端还没有发完的消息数之和，包括等待握手的
+     */
+    int getQueuedMessages();
+
+    long getRttP50Micros();
+
+    long getRttP99Micros();
+
+    long getMessageLatencyP50Micros();
+
+    long getMessageLatencyP99Micros();
+
+    long getMessageLatencyP999Micros();
+}
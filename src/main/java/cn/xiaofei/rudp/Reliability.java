@@ -0,0 +1,103 @@
+package cn.xiaofei.rudp;
+
+/**
+ * 消息的可靠性策略，用于过时即无用的实时数据（行情、游戏状态等）。不可变，可以共享。
+ * <p>默认为{@link #RELIABLE}：每个包最多重传到{@link RDatagramChannel#setRetryTime(int)}次，之后发送失败。
+ * 设置了生存时间或最大重传次数的消息，超过后发送方放弃整个消息：不再重传，通知接收方丢弃已收到的部分，
+ * 并以失败结束（{@link SendTask#isExpired()}为true）。接收方不会收到不完整的消息。
+ * <p>有序消息：接收方按发送的顺序交付发往同一地址的有序消息，比已交付的有序消息更早发出的直接丢弃，不等待，
+ * 发送方在一个有序消息完成后也放弃在它之前发出、尚未完成的有序消息。适合只关心最新状态的数据。
+ */
+public final class Reliability {
+    /**
+     * 完全可靠，不限生存时间，无序
+     */
+    public static final Reliability RELIABLE = new Reliability(0, -1, false);
+
+    private final long lifetimeMillis;
+    private final int maxRetransmits;
+    private final boolean ordered;
+
+    private Reliability(long lifetimeMillis, int maxRetransmits, boolean ordered) {
+        this.lifetimeMillis = lifetimeMillis;
+        this.maxRetransmits = maxRetransmits;
+        this.ordered = ordered;
+    }
+
+    /**
+     * 限定生存时间：从调用send开始计时，到期仍未发送完成则放弃
+     *
+     * @param lifetimeMillis 生存时间（毫秒），大于0
+     */
+    public static Reliability lifetime(long lifetimeMillis) {
+        if (lifetimeMillis <= 0) throw new IllegalArgumentException("lifetime must be positive: " + lifetimeMillis);
+        return new Reliability(lifetimeMillis, -1, false);
+    }
+
+    /**
+     * 限定重传次数：任何一个包重传maxRetransmits次后仍未确认则放弃，为0即只发送一次
+     *
+     * @param maxRetransmits 最大重传次数，不小于0
+     */
+    public static Reliability retransmits(int maxRetransmits) {
+        if (maxRetransmits < 0) throw new IllegalArgumentException("maxRetransmits must not be negative: " + maxRetransmits);
+        return new Reliability(0, maxRetransmits, false);
+    }
+
+    /**
+     * 不可靠但有序：不重传，接收方丢弃比已交付的消息更早发出的消息
+     */
+    public static Reliability unreliableOrdered() {
+        return new Reliability(0, 0, true);
+    }
+
+    /**
+     * 在本策略的基础上同时限定生存时间
+     */
+    public Reliability withLifetime(long lifetimeMillis) {
+        if (lifetimeMillis <= 0) throw new IllegalArgumentException("lifetime must be positive: " + lifetimeMillis);
+        return new Reliability(lifetimeMillis, maxRetransmits, ordered);
+    }
+
+    /**
+     * 在本策略的基础上同时限定重传次数
+     */
+    public Reliability withRetransmits(int maxRetransmits) {
+        if (maxRetransmits < 0) throw new IllegalArgumentException("maxRetransmits must not be negative: " + maxRetransmits);
+        return new Reliability(lifetimeMillis, maxRetransmits, ordered);
+    }
+
+    /**
+     * 在本策略的基础上要求有序
+     */
+    public Reliability ordered() {
+        return new Reliability(lifetimeMillis, maxRetransmits, true);
+    }
+
+    /**
+     * 生存时间（毫秒），0为不限
+     */
+    public long getLifetimeMillis() {
+        return lifetimeMillis;
+    }
+
+    /**
+     * 最大重传次数，-1为不限（仍受重试次数限制）
+     */
+    public int getMaxRetransmits() {
+        return maxRetransmits;
+    }
+
+    public boolean isOrdered() {
+        return ordered;
+    }
+
+    @Override
+    public String toString() {
+        return "Reliability{" +
+                "lifetimeMillis=" + lifetimeMillis +
+                ", maxRetransmits=" + maxRetransmits +
+                ", ordered=" + ordered +
+                '}';
+    }
+}
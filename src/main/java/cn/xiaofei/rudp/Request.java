@@ -0,0 +1,65 @@
+package cn.xiaofei.rudp;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 收到的一个请求，见{@link RequestHandler}。回复带着请求的id发回请求方，完成它的{@link RDatagramChannel#request}
+ */
+public final class Request {
+    private final RDatagramChannel channel;
+    private final InetSocketAddress address;
+    private final long id;
+    private final ByteBuffer data;
+    private final AtomicBoolean replied = new AtomicBoolean();
+
+    Request(RDatagramChannel channel, InetSocketAddress address, long id, ByteBuffer data) {
+        this.channel = channel;
+        this.address = address;
+        this.id = id;
+        this.data = data;
+    }
+
+    /**
+     * 请求方的地址
+     */
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * 请求的id，由请求方分配，只在请求方唯一
+     */
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * 请求的数据，只读
+     */
+    public ByteBuffer getData() {
+        return data.asReadOnlyBuffer();
+    }
+
+    /**
+     * 回复请求，可以在任意线程调用，只能回复一次。发送的是data的position到limit之间的数据
+     *
+     * @return 回复发送完成时完成
+     * @throws IllegalStateException 已经回复过
+     */
+    public CompletableFuture<SendResult> reply(ByteBuffer data) {
+        if (!replied.compareAndSet(false, true)) throw new IllegalStateException("request " + id + " already replied");
+        return channel.reply(this, data);
+    }
+
+    @Override
+    public String toString() {
+        return "Request{" +
+                "address=" + address +
+                ", id=" + id +
+                ", length=" + data.remaining() +
+                '}';
+    }
+}
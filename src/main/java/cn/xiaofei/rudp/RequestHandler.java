@@ -0,0 +1,13 @@
+package cn.xiaofei.rudp;
+
+/**
+ * 处理对端用{@link RDatagramChannel#request(java.nio.ByteBuffer, java.net.InetSocketAddress, long)}发来的请求
+ */
+public interface RequestHandler {
+    /**
+     * 收到一个请求，在回调线程上调用。可以立即回复，也可以保存请求，之后在任意线程回复
+     *
+     * @param request 请求的数据和地址，用{@link Request#reply(java.nio.ByteBuffer)}回复
+     */
+    void onRequest(Request request);
+}
@@ -0,0 +1,72 @@
+package cn.xiaofei.rudp;
+
+/**
+ * 往返时间估计，按Jacobson/Karels算法维护平滑RTT（SRTT）和RTT偏差（RTTVAR），得出重传超时（RTO）。
+ * 每个对端地址一个。只用没有重传过的包采样（Karn算法），时间单位为纳秒。
+ * <p>非线程安全，只由对端所属的事件循环线程修改；指标快照从其他线程读取{@link #srtt()}，平滑RTT为volatile，读到的总是完整的值。
+ */
+final class RttEstimator {
+    private static final double ALPHA = 1.0 / 8;
+    private static final double BETA = 1.0 / 4;
+    private static final long GRANULARITY = 1000000; //时钟粒度，1ms
+    private static final int MAX_BACKOFF = 16;
+
+    private volatile double srtt = -1;
+    private double rttvar = 0;
+
+    /**
+     * 加入一个RTT样本
+     *
+     * @param rtt 往返时间(ns)
+     */
+    void sample(long rtt) {
+        if (rtt < 0) return;
+        if (srtt < 0) {
+            srtt = rtt;
+            rttvar = rtt / 2.0;
+        } else {
+            rttvar = (1 - BETA) * rttvar + BETA * Math.abs(srtt - rtt);
+            srtt = (1 - ALPHA) * srtt + ALPHA * rtt;
+        }
+    }
+
+    boolean hasSample() {
+        return srtt >= 0;
+    }
+
+    /**
+     * 平滑RTT(ns)，没有样本时返回-1
+     */
+    long srtt() {
+        return (long) srtt;
+    }
+
+    /**
+     * 重传超时(ns)。没有样本时取上限。
+     * RTT样本多来自触发确认的那个包，同一个确认覆盖的更早的包还要多等接收方的延迟确认，因此再加上最长的确认延迟
+     *
+     * @param min      下限(ns)
+     * @param max      上限(ns)
+     * @param ackDelay 接收方最长的确认延迟(ns)
+     */
+    long rto(long min, long max, long ackDelay) {
+        if (srtt < 0) return max;
+        long rto = (long) (srtt + Math.max(GRANULARITY, 4 * rttvar)) + ackDelay;
+        return Math.max(min, Math.min(rto, max));
+    }
+
+    /**
+     * 某个包第sendTimes次发送之后的超时时间(ns)：每重传一次超时时间翻倍，但不超过上限。
+     *
+     * @param sendTimes 已发送次数，至少为1
+     * @param min       下限(ns)
+     * @param max       上限(ns)
+     * @param ackDelay  接收方最长的确认延迟(ns)
+     */
+    long timeout(int sendTimes, long min, long max, long ackDelay) {
+        long rto = rto(min, max, ackDelay);
+        int backoff = Math.min(Math.max(sendTimes - 1, 0), MAX_BACKOFF);
+        if (rto > (max >> backoff)) return max;
+        return rto << backoff;
+    }
+}
@@ -0,0 +1,55 @@
+package cn.xiaofei.rudp;
+
+import java.net.InetSocketAddress;
+
+/**
+ * 发送完成的结果，见{@link RDatagramChannel#sendAsync(java.nio.ByteBuffer, InetSocketAddress)}
+ */
+public final class SendResult {
+    private final InetSocketAddress address;
+    private final long length;
+    private final long sentBytes;
+    private final long elapsedNanos;
+
+    SendResult(InetSocketAddress address, long length, long sentBytes, long elapsedNanos) {
+        this.address = address;
+        this.length = length;
+        this.sentBytes = sentBytes;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * 消息的字节数
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * 实际发送的字节数，压缩时为压缩后的字节数
+     */
+    public long getSentBytes() {
+        return sentBytes;
+    }
+
+    /**
+     * 从调用发送到接收方确认全部数据的时间(ns)，包括排队和握手
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "SendResult{" +
+                "address=" + address +
+                ", length=" + length +
+                ", sentBytes=" + sentBytes +
+                ", elapsedNanos=" + elapsedNanos +
+                '}';
+    }
+}
@@ -7,41 +7,145 @@ package cn.xiaofei.rudp;
  * @version 2021.1
  */
 public class SendTask {
-    public SendTask(long sendId, int total, int initSeq) {
+    public SendTask(long sendId, long total) {
+        this(sendId, total, 1024);
+    }
+
+    public SendTask(long sendId, long total, int segmentSize) {
         this.sendId = sendId;
         this.total = total;
-        this.totalPackages = total / 1024 + 1;
-        if (total % 1024 == 0) this.totalPackages--;
-        this.initSeq = initSeq;
+        this.originalLength = total;
+        resize(segmentSize);
+    }
+
+    /**
+     * 按分段大小重新计算小包总数，接收方接受的分段大小比提议的小时调用
+     */
+    void resize(int segmentSize) {
+        this.segmentSize = segmentSize;
+        this.totalPackages = (int) ((total + segmentSize - 1) / segmentSize);
     }
 
     long sendId;
     boolean connected = false;
 
-    Runnable onConnected;
-    Runnable onSending;
-    Runnable onCompleted;
-    Runnable onFailed;
+    volatile Runnable onConnected;
+    volatile Runnable onSending;
+    private Runnable onCompleted;
+    private Runnable onFailed;
+
+    /**
+     * 发送结果，0为尚未结束。设置回调与结束之间加锁，保证在结束之后才设置的回调也会被调用，并且只调用一次
+     */
+    private int result = 0;
+    private static final int COMPLETED = 1;
+    private static final int FAILED = 2;
 
     /**
-     * 需要发送的总字节数
+     * 需要发送的总字节数，压缩时为压缩后的字节数
      */
-    final int total;
+    long total;
+
+    /**
+     * 消息的原始字节数
+     */
+    long originalLength;
 
     /**
      * 需要发送的数据小包总数
      */
     int totalPackages;
 
+    /**
+     * 分段大小，即每个数据小包的内容字节数
+     */
+    int segmentSize;
+
     /**
      * 已发送的字节数
      */
-    int sent = 0;
+    long sent = 0;
+
+    /**
+     * 默认优先级
+     */
+    public static final int PRIORITY_DEFAULT = 0;
+
+    /**
+     * 优先级，越大越先发送
+     */
+    int priority = PRIORITY_DEFAULT;
+
+    /**
+     * 优先级，越大越先发送。发往同一地址的消息共享拥塞窗口，窗口有空间时先发送优先级高的消息的数据包
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * 压缩率，即实际发送的字节数与原始字节数之比，没有压缩为1。与接收方的会话建立之后才确定（接收方不支持压缩则不压缩）
+     */
+    public double getCompressionRatio() {
+        return (double) total / originalLength;
+    }
+
+    /**
+     * 可靠性策略
+     */
+    Reliability reliability = Reliability.RELIABLE;
+
+    /**
+     * 生存时间到期的时间(ns)，0为不限
+     */
+    long deadline = 0;
+
+    /**
+     * 是否因可靠性策略而放弃
+     */
+    volatile boolean expired = false;
+
+    /**
+     * 是否被接收方拒绝
+     */
+    volatile boolean rejected = false;
+
+    /**
+     * 每个数据包额外带的标志位，请求和回复用
+     */
+    byte flags = 0;
+
+    /**
+     * 提交的时间(ns)，按信道的时钟，用于统计消息延迟
+     */
+    long createTime;
+
+    public Reliability getReliability() {
+        return reliability;
+    }
+
+    /**
+     * 是否因可靠性策略（超过生存时间、重传次数，或被之后发出的有序消息取代）而放弃。放弃时同样调用失败回调
+     */
+    public boolean isExpired() {
+        return expired;
+    }
 
     /**
-     * 初始序列号
+     * 是否被接收方拒绝：接收方不是流式接收，而消息超过了它的内存预算（见{@link RDatagramChannel#setReceiveMemoryLimit(long, long)}）
+     * 或{@link RDatagramChannel#MAX_MESSAGE_LENGTH}。
+     * 拒绝时同样调用失败回调
      */
-    final int initSeq;
+    public boolean isRejected() {
+        return rejected;
+    }
+
+    /**
+     * 与接收方协商后的分段大小（字节），连接成功之前为提议的大小
+     */
+    public int getSegmentSize() {
+        return segmentSize;
+    }
 
     /**
      * 获取已经发送的数据的百分比
@@ -72,7 +176,12 @@ public class SendTask {
      * 发送完成回调
      */
     public SendTask onCompleted(Runnable onCompleted) {
-        this.onCompleted = onCompleted;
+        boolean done;
+        synchronized (this) {
+            this.onCompleted = onCompleted;
+            done = result == COMPLETED;
+        }
+        if (done && onCompleted != null) onCompleted.run(); //已经完成，立即回调
         return this;
     }
 
@@ -80,8 +189,33 @@ public class SendTask {
      * 发送结束回调
      */
     public SendTask onFailed(Runnable onFailed) {
-        this.onFailed = onFailed;
+        boolean done;
+        synchronized (this) {
+            this.onFailed = onFailed;
+            done = result == FAILED;
+        }
+        if (done && onFailed != null) onFailed.run(); //已经失败，立即回调
         return this;
     }
 
+    /**
+     * 标记发送完成
+     *
+     * @return 需要调用的完成回调，可能为null
+     */
+    synchronized Runnable complete() {
+        result = COMPLETED;
+        return onCompleted;
+    }
+
+    /**
+     * 标记发送失败
+     *
+     * @return 需要调用的失败回调，可能为null
+     */
+    synchronized Runnable fail() {
+        result = FAILED;
+        return onFailed;
+    }
+
 }
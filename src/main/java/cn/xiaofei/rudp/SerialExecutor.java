@@ -0,0 +1,80 @@
+package cn.xiaofei.rudp;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * 在一个Executor上按key串行执行任务：key相同的任务按提交顺序逐个执行，不同key的任务可以并发。
+ * 每个有任务的key占用一个执行中的任务（如一个虚拟线程），执行完队列中的任务后退出，没有任务的key不占内存。
+ */
+final class SerialExecutor {
+    private final Executor executor;
+    private final ConcurrentHashMap<Object, Lane> lanes = new ConcurrentHashMap<>();
+
+    SerialExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    Executor executor() {
+        return executor;
+    }
+
+    /**
+     * 在key的队列末尾加入任务，队列原本为空则在executor上开始执行。
+     * executor拒绝执行（如已关闭）时在当前线程上执行这个key排队的任务，任务中归还缓冲区和内存预算等照常进行，队列也不会卡住
+     */
+    void execute(Object key, Runnable task) {
+        Lane[] started = new Lane[1];
+        lanes.compute(key, (k, lane) -> {
+            if (lane == null) lane = new Lane(k);
+            lane.tasks.add(task);
+            if (!lane.running) {
+                lane.running = true;
+                started[0] = lane;
+            }
+            return lane;
+        });
+        if (started[0] == null) return;
+        try {
+            executor.execute(started[0]);
+        } catch (RejectedExecutionException e) {
+            e.printStackTrace();
+            started[0].run();
+        }
+    }
+
+    /**
+     * 一个key的任务队列，只在lanes.compute中修改，由此保证前后任务之间的可见性
+     */
+    private final class Lane implements Runnable {
+        final Object key;
+        final Queue<Runnable> tasks = new ArrayDeque<>();
+        boolean running = false;
+
+        Lane(Object key) {
+            this.key = key;
+        }
+
+        @Override
+        public void run() {
+            Runnable[] next = new Runnable[1];
+            while (true) {
+                lanes.compute(key, (k, lane) -> {
+                    next[0] = tasks.poll();
+                    if (next[0] != null) return lane;
+                    running = false;
+                    return null; //队列已空，删除
+                });
+                if (next[0] == null) return;
+                try {
+                    next[0].run();
+                } catch (Throwable e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package cn.xiaofei.rudp;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * 以流的方式接收数据：数据包一旦与前面的数据连续，就按顺序交给监听器，不等整个消息到齐，也不整合成一个大数组。
+ * 交出去的数据包随即释放，因此接收一个消息所需的内存与消息大小无关。
+ * <p>所有回调都在同一个回调线程上按顺序调用，不应长时间阻塞，否则会拖慢接收。
+ */
+public interface StreamReceiveListener {
+    /**
+     * 收到一段按序连续的数据
+     *
+     * @param receiveId 接收id，标识一个消息
+     * @param address   这段数据的发送地址
+     * @param offset    这段数据在整个消息中的偏移
+     * @param chunk     数据，只读，只在本方法内有效，需要保留请复制
+     */
+    void onChunk(long receiveId, InetSocketAddress address, long offset, ByteBuffer chunk);
+
+    /**
+     * 整个消息接收完成，在最后一次{@link #onChunk}之后调用
+     *
+     * @param receiveId 接收id
+     * @param address   最后一个数据包的发送地址
+     * @param length    消息的总字节数
+     */
+    void onComplete(long receiveId, InetSocketAddress address, long length);
+
+    /**
+     * 发送方按可靠性策略放弃了这个消息（见{@link Reliability}），之后不会再有这个消息的数据。
+     * 只对已经交出过数据的消息调用，在最后一次{@link #onChunk}之后
+     *
+     * @param receiveId 接收id
+     * @param address   发送地址
+     * @param length    已经交出的字节数
+     */
+    default void onAbandoned(long receiveId, InetSocketAddress address, long length) {
+    }
+}
@@ -0,0 +1,49 @@
+package cn.xiaofei.rudp;
+
+/**
+ * 令牌桶，以字节计，用于限制发送带宽。令牌按速率持续加入，最多积累到桶的容量，即允许的最大突发。
+ * <p>令牌不小于0时允许发送，发送后扣掉包的字节数，可以扣成负数，之后要等令牌回到0，因此长期的平均速率不超过设定的速率。
+ * 不受限的流量也在这里扣除令牌，它们占用的带宽随之从受限的流量中让出。
+ * <p>时间单位为纳秒（信道的{@link Clock}）。整个信道的令牌桶由各事件循环共享，方法都加锁。
+ */
+final class TokenBucket {
+    private final long rate; //每秒的字节数
+    private final long burst; //桶的容量（字节）
+    private double tokens;
+    private long last; //上次加入令牌的时间
+
+    TokenBucket(long rate, long burst, long now) {
+        this.rate = rate;
+        this.burst = burst;
+        this.tokens = burst;
+        this.last = now;
+    }
+
+    long rate() {
+        return rate;
+    }
+
+    /**
+     * 距离可以发送还要等待的时间(ns)，可以立即发送则返回0
+     */
+    synchronized long delay(long now) {
+        refill(now);
+        if (tokens >= 0) return 0;
+        return (long) Math.ceil(-tokens * 1e9 / rate);
+    }
+
+    /**
+     * 发出了bytes字节
+     */
+    synchronized void consume(int bytes, long now) {
+        refill(now);
+        tokens -= bytes;
+    }
+
+    private void refill(long now) {
+        long elapsed = now - last;
+        if (elapsed <= 0) return;
+        last = now;
+        tokens = Math.min(burst, tokens + elapsed * (double) rate / 1e9);
+    }
+}
@@ -0,0 +1,106 @@
+package cn.xiaofei.rudp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * UDP传输：非阻塞的DatagramChannel，用Selector等待数据报到达
+ */
+final class UdpTransport implements DatagramTransport {
+    private final DatagramChannel channel;
+    private final Selector selector;
+
+    private UdpTransport(DatagramChannel channel, Selector selector) {
+        this.channel = channel;
+        this.selector = selector;
+    }
+
+    static UdpTransport open(int port, int shard, boolean reusePort) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        try {
+            if (reusePort) {
+                SocketOption<Boolean> option = reusePortOption();
+                if (option == null) throw new IOException("SO_REUSEPORT is not supported");
+                channel.setOption(option, true);
+            }
+            channel.bind(new InetSocketAddress(port));
+            channel.configureBlocking(false);
+            Selector selector = Selector.open();
+            channel.register(selector, SelectionKey.OP_READ);
+            return new UdpTransport(channel, selector);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * SO_REUSEPORT选项在JDK 9才加入，为了兼容旧版本通过反射获取。不支持则返回null
+     */
+    @SuppressWarnings("unchecked")
+    static SocketOption<Boolean> reusePortOption() {
+        try {
+            SocketOption<Boolean> option = (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+            try (DatagramChannel probe = DatagramChannel.open()) {
+                if (probe.supportedOptions().contains(option)) return option;
+            }
+        } catch (ReflectiveOperationException | IOException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    @Override
+    public InetSocketAddress receive(ByteBuffer dst) throws IOException {
+        return (InetSocketAddress) channel.receive(dst);
+    }
+
+    @Override
+    public int send(ByteBuffer src, InetSocketAddress target) throws IOException {
+        return channel.send(src, target);
+    }
+
+    @Override
+    public void await(long timeoutNanos) throws IOException {
+        try {
+            if (timeoutNanos == 0) {
+                selector.selectNow();
+            } else if (timeoutNanos > 0) {
+                selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(timeoutNanos + 999_999)));
+            } else {
+                selector.select();
+            }
+            selector.selectedKeys().clear(); //只有一个通道，收包时读到没有为止
+        } catch (ClosedSelectorException e) {
+            throw new ClosedChannelException(); //已在其他线程关闭
+        }
+    }
+
+    @Override
+    public void wakeup() {
+        selector.wakeup();
+    }
+
+    @Override
+    public <T> void setOption(SocketOption<T> name, T value) throws IOException {
+        channel.setOption(name, value);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            channel.close();
+        } finally {
+            selector.close();
+        }
+    }
+}
@@ -1,58 +1,70 @@
 package cn.xiaofei.rudp;
 
+/**
+ * 字节数组与数字之间的转换，大端，与{@link Header}的字节序一致。
+ * get/put方法按下标就地读写，不分配内存。
+ */
 class Util {
+    static short getShort(byte[] bytes, int index) {
+        return (short) ((bytes[index] << 8) | (bytes[index + 1] & 0xff));
+    }
+
+    static void putShort(byte[] bytes, int index, short num) {
+        bytes[index] = (byte) (num >> 8);
+        bytes[index + 1] = (byte) num;
+    }
+
+    static int getInt(byte[] bytes, int index) {
+        return (bytes[index] << 24)
+                | ((bytes[index + 1] & 0xff) << 16)
+                | ((bytes[index + 2] & 0xff) << 8)
+                | (bytes[index + 3] & 0xff);
+    }
+
+    static void putInt(byte[] bytes, int index, int num) {
+        bytes[index] = (byte) (num >> 24);
+        bytes[index + 1] = (byte) (num >> 16);
+        bytes[index + 2] = (byte) (num >> 8);
+        bytes[index + 3] = (byte) num;
+    }
+
+    static long getLong(byte[] bytes, int index) {
+        return ((long) getInt(bytes, index) << 32) | (getInt(bytes, index + 4) & 0xffffffffL);
+    }
+
+    static void putLong(byte[] bytes, int index, long num) {
+        putInt(bytes, index, (int) (num >> 32));
+        putInt(bytes, index + 4, (int) num);
+    }
+
     static byte[] shortToBytes(short num) {
         byte[] byteNum = new byte[2];
-        for (int ix = 0; ix < 2; ++ix) {
-            int offset = 16 - (ix + 1) * 8;
-            byteNum[ix] = (byte) ((num >> offset) & 0xff);
-        }
+        putShort(byteNum, 0, num);
         return byteNum;
     }
 
     static short bytesToShort(byte[] byteNum) {
-        short num = 0;
-        for (int ix = 0; ix < 2; ++ix) {
-            num <<= 8;
-            num |= (byteNum[ix] & 0xff);
-        }
-        return num;
+        return getShort(byteNum, 0);
     }
 
     static byte[] intToBytes(int num) {
         byte[] byteNum = new byte[4];
-        for (int ix = 0; ix < 4; ++ix) {
-            int offset = 32 - (ix + 1) * 8;
-            byteNum[ix] = (byte) ((num >> offset) & 0xff);
-        }
+        putInt(byteNum, 0, num);
         return byteNum;
     }
 
     static int bytesToInt(byte[] byteNum) {
-        int num = 0;
-        for (int ix = 0; ix < 4; ++ix) {
-            num <<= 8;
-            num |= (byteNum[ix] & 0xff);
-        }
-        return num;
+        return getInt(byteNum, 0);
     }
 
     static byte[] longToBytes(long num) {
         byte[] byteNum = new byte[8];
-        for (int ix = 0; ix < 8; ++ix) {
-            int offset = 64 - (ix + 1) * 8;
-            byteNum[ix] = (byte) ((num >> offset) & 0xff);
-        }
+        putLong(byteNum, 0, num);
         return byteNum;
     }
 
     static long bytesToLong(byte[] byteNum) {
-        long num = 0;
-        for (int ix = 0; ix < 8; ++ix) {
-            num <<= 8;
-            num |= (byteNum[ix] & 0xff);
-        }
-        return num;
+        return getLong(byteNum, 0);
     }
 
     static byte[] subArray(byte[] array, int startIndexInclusive, int endIndexExclusive) {
@@ -0,0 +1,52 @@
+package cn.xiaofei.rudp;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 由测试推进的时钟。使用它的信道不按真实时间等待定时任务，只在时间推进时唤醒事件循环，处理到期的重传、确认等；
+ * {@link NetworkImpairment}加的延迟也按这个时钟计算。因此几分钟的高延迟、高丢包场景可以在很短的真实时间内跑完，
+ * 而且不受机器负载影响。
+ * <p>每次推进的步长应与时间轮的刻度（1毫秒）相当，并给事件循环留出处理的时间，否则超时会先于本可及时到达的确认触发。
+ */
+public final class VirtualClock implements Clock {
+    private final AtomicLong now;
+    private final List<Runnable> listeners = new CopyOnWriteArrayList<>();
+
+    public VirtualClock() {
+        this(0);
+    }
+
+    /**
+     * @param startNanos 初始时间(ns)
+     */
+    public VirtualClock(long startNanos) {
+        now = new AtomicLong(startNanos);
+    }
+
+    @Override
+    public long nanoTime() {
+        return now.get();
+    }
+
+    /**
+     * 时间前进duration，之后唤醒使用这个时钟的事件循环
+     */
+    public void advance(long duration, TimeUnit unit) {
+        now.addAndGet(Math.max(unit.toNanos(duration), 0));
+        for (Runnable listener : listeners) listener.run();
+    }
+
+    /**
+     * 时间推进时调用listener，在调用advance的线程上执行
+     */
+    void addListener(Runnable listener) {
+        listeners.add(listener);
+    }
+
+    void removeListener(Runnable listener) {
+        listeners.remove(listener);
+    }
+}